@@ -1,20 +1,43 @@
 package com.danielflower.restabuild;
 
+import com.danielflower.restabuild.build.AdaptiveConcurrency;
+import com.danielflower.restabuild.build.AdmissionControl;
+import com.danielflower.restabuild.build.BuildCache;
 import com.danielflower.restabuild.build.BuildDatabase;
 import com.danielflower.restabuild.build.BuildQueue;
+import com.danielflower.restabuild.build.ConcurrencyLimits;
+import com.danielflower.restabuild.build.DurationEstimates;
+import com.danielflower.restabuild.build.GitBackend;
+import com.danielflower.restabuild.build.ProcessTreeSampler;
+import com.danielflower.restabuild.build.QueuePolicy;
+import com.danielflower.restabuild.build.RepoCacheEvictor;
+import com.danielflower.restabuild.build.RepoMaintenance;
+import com.danielflower.restabuild.build.RepoWarmer;
+import com.danielflower.restabuild.build.ResourceSampler;
+import com.danielflower.restabuild.build.SupersedePolicy;
+import com.danielflower.restabuild.build.WorkspacePool;
 import com.danielflower.restabuild.web.BuildResource;
+import com.danielflower.restabuild.web.IdempotencyKeys;
+import com.danielflower.restabuild.web.MetricsResource;
 import com.danielflower.restabuild.web.WebServer;
 import io.muserver.Mutils;
 import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static com.danielflower.restabuild.Config.SERVER_PORT;
 import static com.danielflower.restabuild.FileSandbox.dirPath;
@@ -24,7 +47,12 @@ public class App {
     private final Config config;
     private WebServer webServer;
     public BuildQueue buildQueue;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private ExecutorService executorService;
+    private ExecutorService requestExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ExecutorService prefetchExecutor;
+    private ExecutorService warmExecutor;
 
     public App(Config config) {
         this.config = config;
@@ -42,15 +70,105 @@ public class App {
 
         int appRunnerPort = config.getInt(SERVER_PORT);
 
+        ThreadMode threadMode = config.threadMode();
+        executorService = threadMode.newExecutor();
+        // with platform threads the web server uses its own pool, as it always has
+        requestExecutor = threadMode == ThreadMode.VIRTUAL ? threadMode.newExecutor() : null;
+
         BuildDatabase database = new BuildDatabase();
         int buildTimeoutMinutes = config.getInt(Config.TIMEOUT, 30);
         int numberOfConcurrentBuilds = config.getInt(Config.CONCURRENT_BUILDS);
 
-        buildQueue = new BuildQueue(numberOfConcurrentBuilds, buildTimeoutMinutes, config.deletePolicy());
+        int prefetchThreads = config.getInt(Config.PREFETCH_THREADS, 2);
+        prefetchExecutor = prefetchThreads > 0 ? Executors.newFixedThreadPool(prefetchThreads) : null;
+
+        GitBackend gitBackend = config.gitBackend(executorService);
+        log.info("Using " + gitBackend + " for git operations");
 
-        BuildResource buildResource = new BuildResource(fileSandbox, database, buildQueue, executorService);
+        RepoWarmer repoWarmer = null;
+        int warmIntervalSeconds = config.getInt(Config.WARM_INTERVAL, 0);
+        if (warmIntervalSeconds > 0) {
+            warmExecutor = Executors.newFixedThreadPool(config.getInt(Config.WARM_THREADS, 2));
+            repoWarmer = new RepoWarmer(fileSandbox, warmExecutor, config.getInt(Config.WARM_REPOS, 5),
+                TimeUnit.SECONDS.toMillis(warmIntervalSeconds), TimeUnit.SECONDS.toMillis(config.getInt(Config.WARM_JITTER, 30)),
+                TimeUnit.MINUTES.toMillis(buildTimeoutMinutes), gitBackend);
+            repoWarmer.start(scheduler);
+        }
+
+        WorkspacePool workspaces = new WorkspacePool(fileSandbox, config.getInt(Config.WORKSPACE_POOL_SIZE, 0),
+            config.getBoolean(Config.WORKSPACE_POOL_KEEP_IGNORED, false), config.workspaceMaterialization(), gitBackend,
+            config.getBoolean(Config.GIT_SUBMODULES, false));
+
+        AdmissionControl admission = new AdmissionControl(config.getInt(Config.QUEUE_MAX, 0),
+            config.getInt(Config.QUEUE_MAX_PER_REPO, 0), config.getInt(Config.QUEUE_MAX_PER_CLIENT, 0));
+        ConcurrencyLimits concurrencyLimits = config.concurrencyLimits();
+        QueuePolicy queuePolicy = config.queuePolicy();
+        DurationEstimates durations = new DurationEstimates();
+        SupersedePolicy supersedePolicy = config.supersedePolicy();
+        boolean deduplicate = config.getBoolean(Config.QUEUE_DEDUPLICATE, false);
+        BuildCache resultCache = new BuildCache(TimeUnit.MINUTES.toMillis(config.getInt(Config.RESULT_CACHE_TTL, 1440)),
+            config.getInt(Config.RESULT_CACHE_MAX_ENTRIES, 1000));
+        Map<String, Supplier<JSONObject>> metrics = new LinkedHashMap<>();
+        if (config.getBoolean(Config.CONCURRENT_BUILDS_ADAPTIVE, false)) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            AdaptiveConcurrency concurrency = new AdaptiveConcurrency(numberOfConcurrentBuilds, config.getInt(Config.CONCURRENT_BUILDS_MIN, 1),
+                config.getInt(Config.CONCURRENT_BUILDS_MAX, cores * 2), cores, new File("/proc"));
+            buildQueue = new BuildQueue(concurrency::limit, buildTimeoutMinutes, config.deletePolicy(), workspaces, prefetchExecutor, repoWarmer, admission, concurrencyLimits, queuePolicy, durations, supersedePolicy, deduplicate, resultCache);
+            concurrency.start(scheduler, TimeUnit.SECONDS.toMillis(config.getInt(Config.CONCURRENT_BUILDS_INTERVAL, 15)), buildQueue);
+            log.info("Adapting the number of concurrent builds to the system load, starting at " + concurrency.limit());
+            metrics.put("concurrency", concurrency::toJson);
+        } else {
+            buildQueue = new BuildQueue(() -> numberOfConcurrentBuilds, buildTimeoutMinutes, config.deletePolicy(), workspaces, prefetchExecutor, repoWarmer, admission, concurrencyLimits, queuePolicy, durations, supersedePolicy, deduplicate, resultCache);
+        }
+        metrics.put("buildQueue", buildQueue::toJson);
+        int processSampleIntervalSeconds = config.getInt(Config.PROCESS_SAMPLE_INTERVAL, 2);
+        if (processSampleIntervalSeconds > 0) {
+            ProcessTreeSampler processTreeSampler = new ProcessTreeSampler(TimeUnit.SECONDS.toMillis(processSampleIntervalSeconds));
+            processTreeSampler.start(scheduler, buildQueue);
+            metrics.put("processTrees", processTreeSampler::toJson);
+        }
+        int resourcesSampleIntervalSeconds = config.getInt(Config.RESOURCES_SAMPLE_INTERVAL, 5);
+        if (resourcesSampleIntervalSeconds > 0) {
+            ResourceSampler resourceSampler = new ResourceSampler(new File("/proc"), TimeUnit.SECONDS.toMillis(resourcesSampleIntervalSeconds),
+                config.getInt(Config.RESOURCES_MAX_SAMPLES, 720));
+            if (resourceSampler.start(scheduler, buildQueue)) {
+                metrics.put("resources", resourceSampler::toJson);
+            }
+        }
+        metrics.put("durationEstimates", durations::toJson);
+        metrics.put("resultCache", resultCache::toJson);
+
+        RepoMaintenance repoMaintenance = new RepoMaintenance(fileSandbox, config.getInt(Config.MAINTENANCE_MAX_PACKS, 50),
+            config.getInt(Config.MAINTENANCE_MAX_LOOSE_OBJECTS, 6700));
+        int maintenanceIntervalMinutes = config.getInt(Config.MAINTENANCE_INTERVAL, 60);
+        if (maintenanceIntervalMinutes > 0) {
+            repoMaintenance.start(maintenanceExecutor, TimeUnit.MINUTES.toMillis(maintenanceIntervalMinutes));
+        }
+        metrics.put("repoMaintenance", repoMaintenance::toJson);
+
+        int repoCacheMaxMB = config.getInt(Config.REPO_CACHE_MAX_MB, 0);
+        if (repoCacheMaxMB > 0) {
+            RepoCacheEvictor repoCacheEvictor = new RepoCacheEvictor(fileSandbox, repoCacheMaxMB * 1024L * 1024L, buildQueue::gitUrlsInUse);
+            repoCacheEvictor.start(maintenanceExecutor, TimeUnit.MINUTES.toMillis(1));
+            metrics.put("repoCache", repoCacheEvictor::toJson);
+        }
+
+        String clientHeader = config.get(Config.QUEUE_CLIENT_HEADER, "").trim();
+        IdempotencyKeys idempotencyKeys = new IdempotencyKeys(TimeUnit.MINUTES.toMillis(config.getInt(Config.IDEMPOTENCY_TTL, 1440)),
+            config.getInt(Config.IDEMPOTENCY_MAX_KEYS, 10000));
+        metrics.put("idempotencyKeys", idempotencyKeys::toJson);
+        BuildResource buildResource = new BuildResource(fileSandbox, database, buildQueue, executorService, clientHeader.isEmpty() ? null : clientHeader, idempotencyKeys);
         String context = Mutils.trim(config.get(Config.CONTEXT, "restabuild"), "/");
-        webServer = WebServer.start(appRunnerPort, context, buildResource, buildTimeoutMinutes);
+        metrics.put("threads", () -> threadsJson(threadMode));
+        webServer = WebServer.start(appRunnerPort, context, buildResource, new MetricsResource(metrics), buildTimeoutMinutes, requestExecutor);
+    }
+
+    private static JSONObject threadsJson(ThreadMode threadMode) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return new JSONObject()
+            .put("mode", threadMode.name())
+            .put("platformThreads", threads.getThreadCount())
+            .put("peakPlatformThreads", threads.getPeakThreadCount());
     }
 
     private void deleteOldTempFiles(File tempDir) {
@@ -68,7 +186,15 @@ public class App {
         try {
             log.info("Stopping builds.....");
             buildQueue.stop();
+            scheduler.shutdownNow();
+            maintenanceExecutor.shutdownNow();
             executorService.shutdownNow();
+            if (prefetchExecutor != null) {
+                prefetchExecutor.shutdownNow();
+            }
+            if (warmExecutor != null) {
+                warmExecutor.shutdownNow();
+            }
             boolean allStopped = executorService.awaitTermination(2, TimeUnit.MINUTES);
             log.info("All stopped? " + allStopped);
         } catch (InterruptedException e) {
@@ -84,6 +210,9 @@ public class App {
             log.info("Shutdown complete");
             webServer = null;
         }
+        if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+        }
     }
 
     public static void main(String[] args) {
@@ -1,7 +1,15 @@
 package com.danielflower.restabuild;
 
+import com.danielflower.restabuild.build.ConcurrencyLimits;
 import com.danielflower.restabuild.build.DeletePolicy;
+import com.danielflower.restabuild.build.GitBackend;
+import com.danielflower.restabuild.build.GitBackendType;
+import com.danielflower.restabuild.build.JGitBackend;
+import com.danielflower.restabuild.build.NativeGitBackend;
+import com.danielflower.restabuild.build.QueuePolicy;
 import com.danielflower.restabuild.build.RestaBuildException;
+import com.danielflower.restabuild.build.SupersedePolicy;
+import com.danielflower.restabuild.build.WorkspaceMaterialization;
 import com.danielflower.restabuild.build.InvalidConfigException;
 import org.apache.commons.io.FileUtils;
 
@@ -11,6 +19,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,8 +30,43 @@ public class Config {
     public static final String DATA_DIR = "restabuild.data";
     public static final String CONTEXT = "restabuild.context";
     public static final String CONCURRENT_BUILDS = "restabuild.concurrent.builds";
+    public static final String CONCURRENT_BUILDS_ADAPTIVE = "restabuild.concurrent.builds.adaptive";
+    public static final String CONCURRENT_BUILDS_MIN = "restabuild.concurrent.builds.min";
+    public static final String CONCURRENT_BUILDS_MAX = "restabuild.concurrent.builds.max";
+    public static final String CONCURRENT_BUILDS_INTERVAL = "restabuild.concurrent.builds.interval.seconds";
     public static final String TIMEOUT = "restabuild.timeout";
+    public static final String PROCESS_SAMPLE_INTERVAL = "restabuild.process.sample.interval.seconds";
+    public static final String RESOURCES_SAMPLE_INTERVAL = "restabuild.resources.sample.interval.seconds";
+    public static final String RESOURCES_MAX_SAMPLES = "restabuild.resources.max.samples";
     public static final String DELETE_POLICY = "restabuild.delete.policy";
+    public static final String PREFETCH_THREADS = "restabuild.prefetch.threads";
+    public static final String WARM_INTERVAL = "restabuild.warm.interval.seconds";
+    public static final String WARM_REPOS = "restabuild.warm.repos";
+    public static final String WARM_JITTER = "restabuild.warm.jitter.seconds";
+    public static final String WARM_THREADS = "restabuild.warm.threads";
+    public static final String MAINTENANCE_INTERVAL = "restabuild.maintenance.interval.minutes";
+    public static final String MAINTENANCE_MAX_PACKS = "restabuild.maintenance.max.packs";
+    public static final String MAINTENANCE_MAX_LOOSE_OBJECTS = "restabuild.maintenance.max.loose.objects";
+    public static final String REPO_CACHE_MAX_MB = "restabuild.repo.cache.max.mb";
+    public static final String WORKSPACE_POOL_SIZE = "restabuild.workspace.pool.size";
+    public static final String WORKSPACE_POOL_KEEP_IGNORED = "restabuild.workspace.pool.keep.ignored";
+    public static final String WORKSPACE_MATERIALIZATION = "restabuild.workspace.materialization";
+    public static final String GIT_BACKEND = "restabuild.git.backend";
+    public static final String GIT_EXECUTABLE = "restabuild.git.executable";
+    public static final String GIT_SUBMODULES = "restabuild.git.submodules";
+    public static final String CONCURRENCY_LIMITS = "restabuild.concurrency.limits";
+    public static final String QUEUE_POLICY = "restabuild.queue.policy";
+    public static final String SUPERSEDE_POLICY = "restabuild.supersede.policy";
+    public static final String QUEUE_DEDUPLICATE = "restabuild.queue.deduplicate";
+    public static final String RESULT_CACHE_TTL = "restabuild.result.cache.ttl.minutes";
+    public static final String RESULT_CACHE_MAX_ENTRIES = "restabuild.result.cache.max.entries";
+    public static final String QUEUE_MAX = "restabuild.queue.max";
+    public static final String QUEUE_MAX_PER_REPO = "restabuild.queue.max.per.repo";
+    public static final String QUEUE_MAX_PER_CLIENT = "restabuild.queue.max.per.client";
+    public static final String QUEUE_CLIENT_HEADER = "restabuild.queue.client.header";
+    public static final String IDEMPOTENCY_TTL = "restabuild.idempotency.ttl.minutes";
+    public static final String IDEMPOTENCY_MAX_KEYS = "restabuild.idempotency.max.keys";
+    public static final String THREAD_MODE = "restabuild.threads";
 
     public static Config load(String[] commandLineArgs) throws IOException {
         Map<String, String> env = new HashMap<>(System.getenv());
@@ -72,6 +116,61 @@ public class Config {
         }
     }
 
+    public WorkspaceMaterialization workspaceMaterialization() {
+        String value = get(WORKSPACE_MATERIALIZATION, WorkspaceMaterialization.CLONE.name());
+        try {
+            return WorkspaceMaterialization.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new RestaBuildException("Invalid value (" + value + ") for " + WORKSPACE_MATERIALIZATION + " config. It should be one of " + Stream.of(WorkspaceMaterialization.values()).map(WorkspaceMaterialization::name).collect(Collectors.joining(", ")));
+        }
+    }
+
+    public QueuePolicy queuePolicy() {
+        String value = get(QUEUE_POLICY, QueuePolicy.FAIR.name());
+        try {
+            return QueuePolicy.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new RestaBuildException("Invalid value (" + value + ") for " + QUEUE_POLICY + " config. It should be one of " + Stream.of(QueuePolicy.values()).map(QueuePolicy::name).collect(Collectors.joining(", ")));
+        }
+    }
+
+    public SupersedePolicy supersedePolicy() {
+        String value = get(SUPERSEDE_POLICY, SupersedePolicy.NONE.name());
+        try {
+            return SupersedePolicy.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new RestaBuildException("Invalid value (" + value + ") for " + SUPERSEDE_POLICY + " config. It should be one of " + Stream.of(SupersedePolicy.values()).map(SupersedePolicy::name).collect(Collectors.joining(", ")));
+        }
+    }
+
+    public ThreadMode threadMode() {
+        String value = get(THREAD_MODE, ThreadMode.PLATFORM.name());
+        try {
+            return ThreadMode.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new RestaBuildException("Invalid value (" + value + ") for " + THREAD_MODE + " config. It should be one of " + Stream.of(ThreadMode.values()).map(ThreadMode::name).collect(Collectors.joining(", ")));
+        }
+    }
+
+    public GitBackend gitBackend(ExecutorService executorService) {
+        String value = get(GIT_BACKEND, GitBackendType.JGIT.name());
+        GitBackendType type;
+        try {
+            type = GitBackendType.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new RestaBuildException("Invalid value (" + value + ") for " + GIT_BACKEND + " config. It should be one of " + Stream.of(GitBackendType.values()).map(GitBackendType::name).collect(Collectors.joining(", ")));
+        }
+        return type == GitBackendType.NATIVE ? new NativeGitBackend(get(GIT_EXECUTABLE, "git"), executorService) : new JGitBackend();
+    }
+
+    public ConcurrencyLimits concurrencyLimits() {
+        try {
+            return ConcurrencyLimits.parse(get(CONCURRENCY_LIMITS, ""));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidConfigException("Invalid value for " + CONCURRENCY_LIMITS + " config: " + e.getMessage());
+        }
+    }
+
     public int getInt(String name) {
         String s = get(name);
         try {
@@ -90,6 +189,13 @@ public class Config {
         }
     }
 
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String s = get(name, String.valueOf(defaultValue));
+        if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false")) {
+            return Boolean.parseBoolean(s);
+        }
+        throw new InvalidConfigException("Could not convert " + name + "=" + s + " to a boolean");
+    }
 
     public File getOrCreateDir(String name) {
         File f = new File(get(name));
@@ -27,9 +27,18 @@ public class FileSandbox {
     public File tempDir(String name) {
         return ensureExists("temp/" + name + "/" + System.currentTimeMillis());
     }
+    public File reposDir() {
+        return ensureExists("repos");
+    }
     public File repoDir(String gitUrl) {
         return ensureExists("repos/" + DigestUtils.sha1Hex(gitUrl));
     }
+    public File pristineDir(String gitUrl) {
+        return ensureExists("pristine/" + DigestUtils.sha1Hex(gitUrl));
+    }
+    public File pristineDirFor(File repoDir) {
+        return new File(root, "pristine" + File.separator + repoDir.getName());
+    }
     public File buildDir(String id) {
         return ensureExists("builds/" + id);
     }
@@ -0,0 +1,57 @@
+package com.danielflower.restabuild;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The kind of threads that run builds, pump their output, and handle web requests such as streamed build logs.
+ * <p>Nothing waits for a running build: it ends when its process exits, and a shared deadline timer stops it if it
+ * runs too long. Each running build and native git command still blocks one thread reading its output, and each
+ * viewer of a build log in progress blocks a request thread, so with many builds and viewers most threads are
+ * waiting.</p>
+ */
+public enum ThreadMode {
+
+    /**
+     * A platform thread per task, from a cached pool.
+     */
+    PLATFORM,
+
+    /**
+     * A virtual thread per task, which costs little while blocked. This needs Java 21 or later, and platform threads
+     * are used on earlier versions.
+     */
+    VIRTUAL;
+
+    private static final Logger log = LoggerFactory.getLogger(ThreadMode.class);
+
+    /**
+     * @return An executor that runs each task as soon as it is submitted
+     */
+    public ExecutorService newExecutor() {
+        if (this == VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            log.warn("Virtual threads need Java 21 or later so platform threads are being used on Java " + Runtime.version().feature());
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @return A virtual thread per task executor, or null if this version of Java does not have one
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // looked up at runtime as the code is compiled for Java 11
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // on Java 19 and 20 the method exists but throws unless preview features are enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.danielflower.restabuild.build;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the number of builds that can run at once based on how busy the machine is, rather than using a fixed number.
+ * <p>Each interval the system load average and available memory are read from <code>/proc</code>, and the CPU used by
+ * the process tree of each running build is measured. The limit then moves by one:</p>
+ * <ul>
+ *     <li>down, if the load is above the number of cores or available memory is low;</li>
+ *     <li>up, if builds are waiting for the limit and there are enough idle cores for another build of the size
+ *     currently running, and enough memory;</li>
+ *     <li>otherwise it stays where it is.</li>
+ * </ul>
+ * <p>Moving one step per interval gives the load average, which lags, time to reflect each change. The limit never
+ * leaves the configured minimum and maximum.</p>
+ */
+public class AdaptiveConcurrency {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+    static final double TARGET_LOAD_PER_CORE = 0.9;
+    static final double LOW_MEMORY_FRACTION = 0.1;
+    static final double SPARE_MEMORY_FRACTION = 0.25;
+    private static final int DECISIONS_KEPT = 20;
+
+    private final int min;
+    private final int max;
+    private final int cores;
+    private final File procDir;
+    private volatile int limit;
+    private final Map<BuildResult, long[]> lastCpu = new HashMap<>();
+    private final Deque<JSONObject> decisions = new ArrayDeque<>();
+    private volatile JSONObject lastSample = new JSONObject();
+    private long increases;
+    private long decreases;
+
+    /**
+     * @param initial The limit to start with
+     * @param min The lowest the limit can go
+     * @param max The highest the limit can go
+     * @param cores The number of CPU cores available to builds
+     * @param procDir The location of the proc filesystem, normally <code>/proc</code>
+     */
+    public AdaptiveConcurrency(int initial, int min, int max, int cores, File procDir) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.cores = cores;
+        this.procDir = procDir;
+        this.limit = Math.max(this.min, Math.min(this.max, initial));
+    }
+
+    /**
+     * @return The number of builds that can currently run at the same time
+     */
+    public int limit() {
+        return limit;
+    }
+
+    public void start(ScheduledExecutorService scheduler, long intervalMillis, BuildQueue buildQueue) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                int before = limit;
+                int[] status = buildQueue.status();
+                sample(buildQueue.runningBuilds(), status[0], System.currentTimeMillis());
+                if (limit > before) {
+                    buildQueue.startIfCapacity();
+                }
+            } catch (Exception e) {
+                log.error("Error while adjusting build concurrency", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void sample(Collection<BuildResult> running, int queued, long now) throws IOException {
+        double buildCores = 0;
+        Map<BuildResult, long[]> current = new HashMap<>();
+        for (BuildResult build : running) {
+            long cpuMillis = build.cpuMillis();
+            if (cpuMillis < 0) {
+                continue;
+            }
+            long[] previous = lastCpu.get(build);
+            if (previous != null && now > previous[1]) {
+                // processes that exit take their CPU time with them, so a drop means nothing was measured
+                buildCores += Math.max(0, cpuMillis - previous[0]) / (double) (now - previous[1]);
+            }
+            current.put(build, new long[] {cpuMillis, now});
+        }
+        lastCpu.clear();
+        lastCpu.putAll(current);
+        SystemLoad load = SystemLoad.read(procDir);
+        adjust(load, buildCores, running.size(), queued, now);
+    }
+
+    /**
+     * Moves the limit by at most one step based on a sample.
+     * @param buildCores The number of cores the running builds used since the previous sample
+     */
+    synchronized void adjust(SystemLoad load, double buildCores, int running, int queued, long now) {
+        double usedCores = Math.max(load.loadAverage, buildCores);
+        double coresPerBuild = running == 0 ? 1.0 : Math.max(0.1, buildCores / running);
+        int before = limit;
+        String reason;
+        if (usedCores > cores) {
+            reason = "load of " + round(usedCores) + " is above the " + cores + " cores";
+            limit = Math.max(min, limit - 1);
+        } else if (load.memoryAvailableFraction() < LOW_MEMORY_FRACTION) {
+            reason = "only " + percent(load.memoryAvailableFraction()) + " of memory is available";
+            limit = Math.max(min, limit - 1);
+        } else if (queued == 0 || running < limit) {
+            reason = "builds are not waiting for the limit";
+        } else if (usedCores + coresPerBuild > cores * TARGET_LOAD_PER_CORE) {
+            reason = "another build using " + round(coresPerBuild) + " cores would exceed the target load";
+        } else if (load.memoryAvailableFraction() < SPARE_MEMORY_FRACTION) {
+            reason = "there is not enough spare memory for another build";
+        } else {
+            reason = "there are idle cores and memory for another build";
+            limit = Math.min(max, limit + 1);
+        }
+
+        JSONObject sample = new JSONObject()
+            .put("at", Instant.ofEpochMilli(now).toString())
+            .put("loadAverage", round(load.loadAverage))
+            .put("buildCores", round(buildCores))
+            .put("memoryAvailablePercent", Math.round(load.memoryAvailableFraction() * 100))
+            .put("running", running)
+            .put("queued", queued)
+            .put("limit", limit)
+            .put("reason", reason);
+        lastSample = sample;
+        if (limit != before) {
+            if (limit > before) {
+                increases++;
+            } else {
+                decreases++;
+            }
+            decisions.addFirst(sample.put("previousLimit", before));
+            while (decisions.size() > DECISIONS_KEPT) {
+                decisions.removeLast();
+            }
+            log.info("Changed the build concurrency limit from " + before + " to " + limit + " as " + reason);
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static String percent(double fraction) {
+        return Math.round(fraction * 100) + "%";
+    }
+
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+            .put("limit", limit)
+            .put("min", min)
+            .put("max", max)
+            .put("cores", cores)
+            .put("increases", increases)
+            .put("decreases", decreases)
+            .put("lastSample", lastSample)
+            .put("recentChanges", new JSONArray(decisions));
+    }
+
+    /**
+     * The load average and memory of the machine at a point in time.
+     */
+    static class SystemLoad {
+        final double loadAverage;
+        final long memoryTotalKB;
+        final long memoryAvailableKB;
+
+        SystemLoad(double loadAverage, long memoryTotalKB, long memoryAvailableKB) {
+            this.loadAverage = loadAverage;
+            this.memoryTotalKB = memoryTotalKB;
+            this.memoryAvailableKB = memoryAvailableKB;
+        }
+
+        /**
+         * @return The fraction of memory available, or 1 if it is unknown
+         */
+        double memoryAvailableFraction() {
+            return memoryTotalKB <= 0 ? 1.0 : memoryAvailableKB / (double) memoryTotalKB;
+        }
+
+        /**
+         * Reads the one minute load average and memory from the proc filesystem, or, where there is none, the load
+         * average from the JVM with memory treated as unknown.
+         */
+        static SystemLoad read(File procDir) throws IOException {
+            File loadavg = new File(procDir, "loadavg");
+            File meminfo = new File(procDir, "meminfo");
+            if (!loadavg.isFile() || !meminfo.isFile()) {
+                double jvmLoad = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+                return new SystemLoad(Math.max(0, jvmLoad), 0, 0);
+            }
+            String[] loads = FileUtils.readFileToString(loadavg, StandardCharsets.US_ASCII).trim().split("\\s+");
+            long total = 0;
+            long available = 0;
+            for (String line : FileUtils.readLines(meminfo, StandardCharsets.US_ASCII)) {
+                String[] parts = line.split("[:\\s]+");
+                if (parts.length >= 2) {
+                    if (parts[0].equals("MemTotal")) {
+                        total = Long.parseLong(parts[1]);
+                    } else if (parts[0].equals("MemAvailable")) {
+                        available = Long.parseLong(parts[1]);
+                    }
+                }
+            }
+            return new SystemLoad(Double.parseDouble(loads[0]), total, available);
+        }
+    }
+}
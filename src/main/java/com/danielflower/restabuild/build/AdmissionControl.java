@@ -0,0 +1,135 @@
+package com.danielflower.restabuild.build;
+
+import io.muserver.HeaderNames;
+import org.json.JSONObject;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many builds can be queued in total, per repo and per client, so that submissions beyond what the server
+ * can get through are turned away up front rather than each allocating a build that may wait for hours.
+ * <p>A rejected submission gets a <code>429 Too Many Requests</code> response with a <code>Retry-After</code> header
+ * estimated from how quickly queued builds have recently been starting.</p>
+ * <p>This class is not thread safe; the {@link BuildQueue} only calls it while holding its lock.</p>
+ */
+public class AdmissionControl {
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_RETRY_SECONDS = 60;
+    private static final long MAX_RETRY_SECONDS = 3600;
+
+    private final int maxQueued;
+    private final int maxQueuedPerRepo;
+    private final int maxQueuedPerClient;
+    private final Map<String, Integer> queuedPerRepo = new HashMap<>();
+    private final Map<String, Integer> queuedPerClient = new HashMap<>();
+    private final long[] recentStarts = new long[32];
+    private long startCount;
+    private long rejectedAsQueueFull;
+    private long rejectedAsRepoFull;
+    private long rejectedAsClientFull;
+
+    /**
+     * @param maxQueued The maximum number of builds that can be queued, or 0 for no limit
+     * @param maxQueuedPerRepo The maximum number of builds of a single git URL that can be queued, or 0 for no limit
+     * @param maxQueuedPerClient The maximum number of builds from a single client that can be queued, or 0 for no limit
+     */
+    public AdmissionControl(int maxQueued, int maxQueuedPerRepo, int maxQueuedPerClient) {
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerRepo = maxQueuedPerRepo;
+        this.maxQueuedPerClient = maxQueuedPerClient;
+    }
+
+    /**
+     * Checks that another build can be queued.
+     * @param queued The number of builds currently queued
+     * @throws ClientErrorException with a 429 status if any limit has been reached
+     */
+    void admit(String repo, String client, int queued, long now) {
+        if (maxQueued > 0 && queued >= maxQueued) {
+            rejectedAsQueueFull++;
+            throw tooMany("The build queue is full", queued - maxQueued + 1, 1, now);
+        }
+        int repoQueued = queuedPerRepo.getOrDefault(repo, 0);
+        if (maxQueuedPerRepo > 0 && repoQueued >= maxQueuedPerRepo) {
+            rejectedAsRepoFull++;
+            // the repo takes turns with the other queued repos, so its builds start at its share of the overall rate
+            throw tooMany("There are already " + repoQueued + " builds of " + repo + " queued", repoQueued - maxQueuedPerRepo + 1, queuedPerRepo.size(), now);
+        }
+        int clientQueued = client == null ? 0 : queuedPerClient.getOrDefault(client, 0);
+        if (maxQueuedPerClient > 0 && clientQueued >= maxQueuedPerClient) {
+            rejectedAsClientFull++;
+            throw tooMany("There are already " + clientQueued + " builds from " + client + " queued", clientQueued - maxQueuedPerClient + 1, 1, now);
+        }
+    }
+
+    private ClientErrorException tooMany(String reason, int excess, int sharedWith, long now) {
+        long retryAfter = retryAfterSeconds(excess, sharedWith, now);
+        String message = reason + ". Please try again in " + retryAfter + " seconds.";
+        return new ClientErrorException(message, Response.status(TOO_MANY_REQUESTS)
+            .header(HeaderNames.RETRY_AFTER.toString(), retryAfter)
+            .type(MediaType.TEXT_PLAIN_TYPE)
+            .entity(message)
+            .build());
+    }
+
+    /**
+     * Estimates how long until enough builds have started for there to be room for one more.
+     * @param excess How many builds need to start first
+     * @param sharedWith The number of groups that the starts are shared between
+     */
+    long retryAfterSeconds(int excess, int sharedWith, long now) {
+        double startsPerMilli = startsPerMilli(now);
+        if (startsPerMilli <= 0) {
+            return DEFAULT_RETRY_SECONDS;
+        }
+        long seconds = (long) Math.ceil(excess * Math.max(1, sharedWith) / startsPerMilli / 1000.0);
+        return Math.max(1, Math.min(MAX_RETRY_SECONDS, seconds));
+    }
+
+    /**
+     * The recent rate at which builds have left the queue. The time since the oldest remembered start is measured up to
+     * now so that the estimate falls when builds stop starting.
+     */
+    private double startsPerMilli(long now) {
+        int count = (int) Math.min(startCount, recentStarts.length);
+        if (count == 0) {
+            return 0;
+        }
+        long oldest = recentStarts[startCount < recentStarts.length ? 0 : (int) (startCount % recentStarts.length)];
+        return count / (double) Math.max(1000, now - oldest);
+    }
+
+    void queued(String repo, String client) {
+        queuedPerRepo.merge(repo, 1, Integer::sum);
+        if (client != null) {
+            queuedPerClient.merge(client, 1, Integer::sum);
+        }
+    }
+
+    void dequeued(String repo, String client) {
+        queuedPerRepo.computeIfPresent(repo, (k, v) -> v == 1 ? null : v - 1);
+        if (client != null) {
+            queuedPerClient.computeIfPresent(client, (k, v) -> v == 1 ? null : v - 1);
+        }
+    }
+
+    void started(long now) {
+        recentStarts[(int) (startCount % recentStarts.length)] = now;
+        startCount++;
+    }
+
+    JSONObject toJson(long now) {
+        return new JSONObject()
+            .put("maxQueued", maxQueued)
+            .put("maxQueuedPerRepo", maxQueuedPerRepo)
+            .put("maxQueuedPerClient", maxQueuedPerClient)
+            .put("rejectedAsQueueFull", rejectedAsQueueFull)
+            .put("rejectedAsRepoFull", rejectedAsRepoFull)
+            .put("rejectedAsClientFull", rejectedAsClientFull)
+            .put("recentStartsPerMinute", Math.round(startsPerMilli(now) * 60000 * 100) / 100.0);
+    }
+}
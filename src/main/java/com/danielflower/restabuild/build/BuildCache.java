@@ -0,0 +1,105 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which builds succeeded for each commit of a repo and build parameter, so that a build of a commit that has already
+ * been built can reuse that result rather than running the build script again.
+ * <p>This is only correct for builds whose result depends on nothing but the checked out files and the build
+ * parameter, so builds have to ask for their result to be reused. Entries expire after a time to live, and the least
+ * recently used entries are removed once there are too many.</p>
+ */
+public class BuildCache {
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Map<String, CachedResult> entries;
+    private long hits;
+    private long misses;
+    private long expired;
+
+    /**
+     * @param ttlMillis How long a successful build can be reused for
+     * @param maxEntries The most results to remember, or 0 to never reuse results
+     */
+    public BuildCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > BuildCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The git URL is part of the key as a fork or mirror with the same commit has its own origin for the build to push
+     * tags to, and the sparse paths are part of it as they decide which files the build sees.
+     */
+    static String key(URIish gitUrl, String commitID, String buildParam, List<String> sparsePaths) {
+        return gitUrl + " " + commitID + " " + String.join(",", sparsePaths) + " " + (buildParam == null ? "" : buildParam);
+    }
+
+    /**
+     * @return The successful build with the same key, or null if there is none that has not expired
+     */
+    synchronized CachedResult lookup(String key, long now) {
+        CachedResult entry = entries.get(key);
+        if (entry != null && now - entry.builtAt > ttlMillis) {
+            entries.remove(key);
+            expired++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * @param logUrl The URL of the log of the successful build, or null if unknown
+     */
+    synchronized void record(String key, String buildId, String logUrl, long now) {
+        entries.put(key, new CachedResult(buildId, logUrl, now));
+    }
+
+    public synchronized JSONObject toJson() {
+        long lookups = hits + misses;
+        return new JSONObject()
+            .put("entries", entries.size())
+            .put("maxEntries", maxEntries)
+            .put("ttlMillis", ttlMillis)
+            .put("hits", hits)
+            .put("misses", misses)
+            .put("expired", expired)
+            .put("hitRate", lookups == 0 ? 0.0 : Math.round(hits * 1000.0 / lookups) / 1000.0);
+    }
+
+    static class CachedResult {
+        final String buildId;
+        final String logUrl;
+        final long builtAt;
+
+        private CachedResult(String buildId, String logUrl, long builtAt) {
+            this.buildId = buildId;
+            this.logUrl = logUrl;
+            this.builtAt = builtAt;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                .put("id", buildId)
+                .put("logUrl", logUrl)
+                .put("builtAt", Instant.ofEpochMilli(builtAt).toString());
+        }
+    }
+}
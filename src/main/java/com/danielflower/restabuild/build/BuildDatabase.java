@@ -12,6 +12,10 @@ public class BuildDatabase {
         db.put(br.id, br);
     }
 
+    public void remove(String id) {
+        db.remove(id);
+    }
+
     public Collection<BuildResult> all() {
         return db.values();
     }
@@ -0,0 +1,25 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * The priority class a build is submitted with.
+ * <p>Queued builds of a higher class always start before those of a lower class. Within a class, builds of
+ * different repos take turns so that one repo with many queued builds cannot starve the others.</p>
+ */
+public enum BuildPriority {
+
+    /**
+     * For builds that someone is waiting on, such as release builds.
+     */
+    HIGH,
+
+    /**
+     * The default for builds that do not specify a priority.
+     */
+    NORMAL,
+
+    /**
+     * For background work, such as scheduled or bulk builds, that should only use capacity nobody else needs.
+     */
+    LOW
+
+}
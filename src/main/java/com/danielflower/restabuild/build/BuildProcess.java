@@ -1,7 +1,6 @@
 package com.danielflower.restabuild.build;
 
 import com.danielflower.restabuild.Config;
-import com.danielflower.restabuild.FileSandbox;
 import org.apache.commons.io.file.StandardDeleteOption;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -16,10 +15,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -27,6 +26,15 @@ import static com.danielflower.restabuild.FileSandbox.dirPath;
 
 public class BuildProcess {
 
+    /**
+     * How long the processes of a cancelled build have to stop before they are killed
+     */
+    private static final long CANCEL_GRACE_MILLIS = 10_000;
+    /**
+     * How long to wait for the output of killed processes to finish before ending the build anyway
+     */
+    private static final long GIVE_UP_DELAY_MILLIS = 10_000;
+
     private volatile BuildStatus status = BuildStatus.QUEUED;
     private final Object lock = new Object();
 
@@ -38,7 +46,7 @@ public class BuildProcess {
     private final Map<String, String> environment;
     private final String buildParam;
     private final RepoBranch repoBranch;
-    private final FileSandbox sandbox;
+    private final WorkspacePool workspaces;
     private ObjectId commitIDBeforeBuild;
     private ObjectId commitIDAfterBuild;
     private List<String> tagsBefore;
@@ -46,6 +54,15 @@ public class BuildProcess {
     private File workDir;
     private volatile Process process;
     private final DeletePolicy instanceDirDeletePolicy;
+    private final WorkspacePrefetch prefetch;
+    private final BuildCache resultCache;
+    private volatile BuildCache.CachedResult reusedResult;
+    private final CompletableFuture<Void> processDone = new CompletableFuture<>();
+    private volatile boolean timedOut;
+    private volatile long startedAt;
+    private volatile long cancelledAt = -1;
+    private volatile long cancelLatencyMillis = -1;
+    private volatile ScheduledFuture<?> timeout;
 
     public File workDir() {
         return workDir;
@@ -63,7 +80,30 @@ public class BuildProcess {
         return createdTags;
     }
 
-    BuildProcess(@NotNull BuildProcessListener buildProcessListener, @NotNull Writer logWriter, ExecutorService executor, long timeoutMillis, Map<String, String> environment, String buildParam, RepoBranch repoBranch, FileSandbox sandbox, DeletePolicy instanceDirDeletePolicy) {
+    /**
+     * @return How long the processes of the build took to stop after it was cancelled, or -1 if it was not cancelled
+     * while its processes were running
+     */
+    long cancelLatencyMillis() {
+        return cancelLatencyMillis;
+    }
+
+    /**
+     * @return The earlier successful build of the same commit whose result was used instead of running the build, or null
+     */
+    BuildCache.CachedResult reusedResult() {
+        return reusedResult;
+    }
+
+    BuildProcess(@NotNull BuildProcessListener buildProcessListener, @NotNull Writer logWriter, ExecutorService executor, long timeoutMillis, Map<String, String> environment, String buildParam, RepoBranch repoBranch, WorkspacePool workspaces, DeletePolicy instanceDirDeletePolicy, WorkspacePrefetch prefetch) {
+        this(buildProcessListener, logWriter, executor, timeoutMillis, environment, buildParam, repoBranch, workspaces, instanceDirDeletePolicy, prefetch, null);
+    }
+
+    /**
+     * @param resultCache The successful builds to reuse if one was of the same commit and build parameter, or null to
+     *                    always run the build
+     */
+    BuildProcess(@NotNull BuildProcessListener buildProcessListener, @NotNull Writer logWriter, ExecutorService executor, long timeoutMillis, Map<String, String> environment, String buildParam, RepoBranch repoBranch, WorkspacePool workspaces, DeletePolicy instanceDirDeletePolicy, WorkspacePrefetch prefetch, BuildCache resultCache) {
         this.buildProcessListener = Objects.requireNonNull(buildProcessListener, "buildProcessListener");
         this.logWriter = logWriter;
         this.executor = executor;
@@ -71,27 +111,48 @@ public class BuildProcess {
         this.environment = environment;
         this.buildParam = buildParam;
         this.repoBranch = repoBranch;
-        this.sandbox = sandbox;
+        this.workspaces = workspaces;
         this.instanceDirDeletePolicy = Objects.requireNonNull(instanceDirDeletePolicy, "instanceDirDeletePolicy");
+        this.prefetch = prefetch;
+        this.resultCache = resultCache;
     }
 
+    /**
+     * Changes the status of the build. When the build ends, what it changed in the repo is recorded and the workspace
+     * is closed and released before the listener is told, so anything waiting for the build to finish sees it cleaned
+     * up. A build only ends once, but a workspace handed to a build that has already ended is still released.
+     * @param git The workspace of the build, which is released if the new status is an end state, or null
+     */
     private void changeStatus(BuildStatus newStatus, Git git) {
         synchronized (lock) {
             BuildStatus oldStatus = this.status;
+            if (oldStatus.endState()) {
+                if (newStatus.endState()) {
+                    releaseWorkspace(git);
+                }
+                return;
+            }
             this.status = newStatus;
             if (newStatus.endState()) {
+                ScheduledFuture<?> t = this.timeout;
+                if (t != null) {
+                    t.cancel(false);
+                }
                 try {
                     if (git != null) {
                         List<String> newTags = new ArrayList<>();
 
                         Ref headAfter = git.getRepository().exactRef("HEAD");
 
-                        RemoteGitRepo.getTagsAt(git, commitIDBeforeBuild).forEach(s -> newTags.add(0, s));
-                        try (RevWalk walk = new RevWalk(git.getRepository())) {
-                            walk.markStart(walk.parseCommit(headAfter.getObjectId()));
-                            walk.markUninteresting(walk.parseCommit(commitIDBeforeBuild));
-                            for (RevCommit commit : walk) {
-                                RemoteGitRepo.getTagsAt(git, commit.getId()).forEach(s -> newTags.add(0, s));
+                        Map<ObjectId, List<String>> tagsByCommit = RemoteGitRepo.tagsByCommit(git);
+                        tagsByCommit.getOrDefault(commitIDBeforeBuild, Collections.emptyList()).forEach(s -> newTags.add(0, s));
+                        if (!tagsByCommit.isEmpty()) {
+                            try (RevWalk walk = new RevWalk(git.getRepository())) {
+                                walk.markStart(walk.parseCommit(headAfter.getObjectId()));
+                                walk.markUninteresting(walk.parseCommit(commitIDBeforeBuild));
+                                for (RevCommit commit : walk) {
+                                    tagsByCommit.getOrDefault(commit.getId(), Collections.emptyList()).forEach(s -> newTags.add(0, s));
+                                }
                             }
                         }
                         newTags.removeAll(tagsBefore);
@@ -103,7 +164,7 @@ public class BuildProcess {
                     log.error("Error while processing build completion", e);
                     this.status = newStatus = BuildStatus.FAILURE;
                 }
-
+                releaseWorkspace(git);
             }
             try {
                 buildProcessListener.onStatusChanged(this, oldStatus, newStatus);
@@ -114,162 +175,321 @@ public class BuildProcess {
         }
     }
 
+    private void releaseWorkspace(Git git) {
+        if (git == null) {
+            return;
+        }
+        File wd = git.getRepository().getWorkTree();
+        try {
+            git.close();
+            if (instanceDirDeletePolicy.shouldDelete(status) && !workspaces.release(repoBranch.url, wd, status)) {
+                RemoteGitRepo.deleteDirectoryQuietly(wd, StandardDeleteOption.OVERRIDE_READ_ONLY);
+            }
+        } catch (Exception e) {
+            log.warn("Error while cleaning up " + dirPath(wd) + ": " + e.getMessage());
+        }
+    }
+
     private boolean buildCancelled() {
         return status == BuildStatus.CANCELLED || status == BuildStatus.CANCELLING;
     }
 
     public void start() {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                changeStatus(BuildStatus.IN_PROGRESS, null);
-
-                try {
-                    RemoteGitRepo pm = RemoteGitRepo.create(repoBranch.url, sandbox);
-                    doubleLog(logWriter, "Fetching latest changes from git...");
-                    TextProgressMonitor gitProgressMonitor = new TextProgressMonitor(logWriter) {
-                        public boolean isCancelled() {
-                            return buildCancelled();
-                        }
-                    };
-                    try (Git git = pm.pullFromGitAndCopyWorkingCopyToNewDir(repoBranch.branch, timeoutMillis, gitProgressMonitor)) {
-                        log.info("Current status is " + status);
-
-                        workDir = git.getRepository().getWorkTree();
-                        doubleLog(logWriter, "Created new instance in " + dirPath(workDir));
-
-                        Ref headBefore = git.getRepository().exactRef("HEAD");
-                        commitIDBeforeBuild = headBefore.getObjectId();
-                        tagsBefore = RemoteGitRepo.getTagsAt(git, commitIDBeforeBuild);
-
-                        File f = new File(workDir, BuildResult.buildFile);
-                        if (!f.isFile()) {
-                            logWriter.write("Please place a file called " + BuildResult.buildFile + " in the root of your repo");
-                            changeStatus(BuildStatus.FAILURE, git);
-                        } else {
-
-                            List<String> commands = new ArrayList<>();
-                            if (Config.isWindows()) {
-                                commands.add(f.getCanonicalPath());
-                            } else {
-                                commands.add("bash");
-                                commands.add("-x");
-                                commands.add(f.getName());
-                            }
-                            if (buildParam != null) {
-                                // TODO: add support for quoted parameter values
-                                commands.addAll(Stream.of(buildParam.split("\\s")).filter(s -> !s.isEmpty()).collect(Collectors.toList()));
-                            }
+        executor.execute(this::checkoutAndRun);
+    }
 
+    private void checkoutAndRun() {
+        changeStatus(BuildStatus.IN_PROGRESS, null);
+        startedAt = System.currentTimeMillis();
+        // the deadline thread is shared by all builds, so killing the build is handed to the executor
+        timeout = Deadlines.schedule(() -> runOnExecutor(this::timeOut), timeoutMillis);
 
-                            long buildStartMillis = System.currentTimeMillis();
-                            doubleLog(logWriter, "Starting " + String.join(" ", commands));
-                            synchronized (lock) {
-                                if (buildCancelled()) {
-                                    return;
-                                } else {
-                                    ProcessBuilder processBuilder = new ProcessBuilder()
-                                        .command(commands).directory(workDir)
-                                        .redirectOutput(ProcessBuilder.Redirect.PIPE)
-                                        .redirectErrorStream(true);
-                                    processBuilder.environment().putAll(environment);
-                                    process = processBuilder.start();
-                                }
-                            }
+        Git git = null;
+        try {
+            Git prefetched = prefetch == null ? null : prefetch.take(logWriter, remainingMillis());
+            if (prefetched != null) {
+                doubleLog(logWriter, "Using the workspace that was prepared while the build was queued");
+            } else if (buildCancelled() || timedOut) {
+                changeStatus(timedOut ? BuildStatus.TIMED_OUT : BuildStatus.CANCELLED, null);
+                return;
+            }
+            RepoBranch toCheckOut = repoBranch;
+            if (prefetched == null && resultCache != null) {
+                // the commit is found from the local bare repo first, so a reused result does not need a workspace
+                long fetchStart = System.currentTimeMillis();
+                ObjectId head = workspaces.fetchHead(repoBranch, remainingMillis(), gitProgressMonitor());
+                if (head != null && reuseResultOf(head)) {
+                    commitIDAfterBuild = head;
+                    createdTags = Collections.emptyList();
+                    changeStatus(BuildStatus.SUCCESS, null);
+                    return;
+                }
+                // creating the workspace uses the fetch that was just done rather than fetching again
+                toCheckOut = new RepoBranch(repoBranch.url, repoBranch.branch, repoBranch.sparsePaths,
+                    repoBranch.freshAfter >= 0 ? repoBranch.freshAfter : fetchStart);
+            }
+            git = prefetched != null ? prefetched : fetchAndCreateWorkspace(toCheckOut);
+            log.info("Current status is " + status);
 
-                            Future<?> outputListener = executor.submit(() -> {
-                                try (InputStreamReader out = new InputStreamReader(process.getInputStream())) {
-                                    char[] buffer = new char[512];
-                                    int read;
-                                    while ((read = out.read(buffer)) > -1) {
-                                        if (read > 0) {
-                                            String text = new String(buffer, 0, read);
-                                            logWriter.write(text);
-                                            logWriter.flush();
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    if (!buildCancelled()) {
-                                        log.error("Error while reading output of command", e);
-                                    }
-                                }
-                            });
+            workDir = git.getRepository().getWorkTree();
+            doubleLog(logWriter, "Created new instance in " + dirPath(workDir));
 
-                            boolean timedOut = !process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
-                            try {
-                                outputListener.get(timeoutMillis, TimeUnit.MILLISECONDS);
-                            } catch (TimeoutException e) {
-                                timedOut = true;
-                            }
+            Ref headBefore = git.getRepository().exactRef("HEAD");
+            tagsBefore = RemoteGitRepo.tagsByCommit(git).getOrDefault(headBefore.getObjectId(), Collections.emptyList());
 
-                            if (timedOut) {
-                                changeStatus(BuildStatus.TIMED_OUT, git);
-                                boolean destroyed = process.destroyForcibly().waitFor(10, TimeUnit.SECONDS);
-                                log.info("Timed out build " + this + " " + (destroyed ? "and destroyed process" : "but could not destroy process"));
-                            } else {
-                                if (!buildCancelled()) {
-                                    if (process.exitValue() == 0) {
-                                        doubleLog(logWriter, "Completed " + f.getName() + " in " + (System.currentTimeMillis() - buildStartMillis) + "ms");
-                                        changeStatus(BuildStatus.SUCCESS, git);
-                                    } else {
-                                        String message = "Exit code " + process.exitValue() + " returned from " + f.getName();
-                                        doubleLog(logWriter, message);
-                                        changeStatus(BuildStatus.FAILURE, git);
-                                    }
-                                }
-                            }
+            // the branch may have moved since its head was looked up, so the commit that was checked out is checked too
+            if (resultCache != null && reuseResultOf(headBefore.getObjectId())) {
+                changeStatus(BuildStatus.SUCCESS, git);
+                return;
+            }
+            commitIDBeforeBuild = headBefore.getObjectId();
+            File f = new File(workDir, BuildResult.buildFile);
+            if (!f.isFile()) {
+                logWriter.write("Please place a file called " + BuildResult.buildFile + " in the root of your repo");
+                changeStatus(BuildStatus.FAILURE, git);
+                return;
+            }
 
-                        }
-                    } finally {
-                        var wd = workDir;
-                        if (instanceDirDeletePolicy.shouldDelete(status) && wd != null) {
-                            RemoteGitRepo.deleteDirectoryQuietly(wd, StandardDeleteOption.OVERRIDE_READ_ONLY);
-                        }
-                    }
+            List<String> commands = new ArrayList<>();
+            if (Config.isWindows()) {
+                commands.add(f.getCanonicalPath());
+            } else {
+                commands.add("bash");
+                commands.add("-x");
+                commands.add(f.getName());
+            }
+            if (buildParam != null) {
+                // TODO: add support for quoted parameter values
+                commands.addAll(Stream.of(buildParam.split("\\s")).filter(s -> !s.isEmpty()).collect(Collectors.toList()));
+            }
 
+            long buildStartMillis = System.currentTimeMillis();
+            doubleLog(logWriter, "Starting " + String.join(" ", commands));
+            Process p;
+            synchronized (lock) {
+                if (buildCancelled() || timedOut) {
+                    changeStatus(timedOut ? BuildStatus.TIMED_OUT : BuildStatus.CANCELLED, git);
+                    return;
+                }
+                ProcessBuilder processBuilder = new ProcessBuilder()
+                    .command(ProcessGroup.command(commands)).directory(workDir)
+                    .redirectOutput(ProcessBuilder.Redirect.PIPE)
+                    .redirectErrorStream(true);
+                processBuilder.environment().putAll(environment);
+                p = process = processBuilder.start();
+            }
 
-                } catch (Exception ex) {
-                    BuildStatus finalStatue;
-                    if (buildCancelled()) {
-                        doubleLogIgnoreException(logWriter, "Build cancelled");
-                        finalStatue = BuildStatus.CANCELLED;
-                    } else if (ex instanceof InterruptedException || ex instanceof InterruptedIOException) {
-                        log.info("Stopping due to shut down of server");
-                        doubleLogIgnoreException(logWriter, "Restabuild server shutting down so build stopped");
-                        finalStatue = BuildStatus.CANCELLED;
-                    } else if (ex instanceof GitAPIException) {
-                        Throwable cause = Objects.requireNonNullElse(ex.getCause(), ex);
-                        doubleLogIgnoreException(logWriter, "Error while checking out repository: " + cause.getMessage());
-                        finalStatue = BuildStatus.FAILURE;
-                    } else {
-                        Throwable cause = Objects.requireNonNullElse(ex.getCause(), ex);
-                        doubleLogIgnoreException(logWriter, "Error while starting build: " + cause.getMessage());
-                        log.error("Error stacktrace:", ex);
-                        finalStatue = BuildStatus.FAILURE;
-                    }
-                    try {
-                        cancel(finalStatue);
-                    } catch (InterruptedException e) {
-                        log.info("Interrupted while stopping");
-                    }
+            // Nothing waits for the build: the build ends when the process has exited and all its output is read,
+            // or when a timed out or cancelled build is given up on after its processes were killed
+            CompletableFuture<Void> output = CompletableFuture.runAsync(() -> pumpOutput(p), executor);
+            Git workspace = git;
+            git = null;
+            CompletableFuture.allOf(p.onExit(), output).whenComplete((ignored, error) -> processDone.complete(null));
+            processDone.thenRunAsync(() -> processEnded(p, workspace, f, buildStartMillis), this::runOnExecutor);
+
+        } catch (Exception ex) {
+            BuildStatus finalStatus;
+            if (timedOut) {
+                finalStatus = BuildStatus.TIMED_OUT;
+            } else if (buildCancelled()) {
+                doubleLogIgnoreException(logWriter, "Build cancelled");
+                finalStatus = BuildStatus.CANCELLED;
+            } else if (ex instanceof InterruptedException || ex instanceof InterruptedIOException) {
+                log.info("Stopping due to shut down of server");
+                doubleLogIgnoreException(logWriter, "Restabuild server shutting down so build stopped");
+                finalStatus = BuildStatus.CANCELLED;
+            } else if (ex instanceof GitAPIException) {
+                Throwable cause = Objects.requireNonNullElse(ex.getCause(), ex);
+                doubleLogIgnoreException(logWriter, "Error while checking out repository: " + cause.getMessage());
+                finalStatus = BuildStatus.FAILURE;
+            } else {
+                Throwable cause = Objects.requireNonNullElse(ex.getCause(), ex);
+                doubleLogIgnoreException(logWriter, "Error while starting build: " + cause.getMessage());
+                log.error("Error stacktrace:", ex);
+                finalStatus = BuildStatus.FAILURE;
+            }
+            changeStatus(finalStatus, git);
+        }
+    }
 
+    private void pumpOutput(Process p) {
+        try (InputStreamReader out = new InputStreamReader(p.getInputStream())) {
+            char[] buffer = new char[512];
+            int read;
+            while ((read = out.read(buffer)) > -1) {
+                if (read > 0) {
+                    String text = new String(buffer, 0, read);
+                    logWriter.write(text);
+                    logWriter.flush();
                 }
             }
-        });
+        } catch (Exception e) {
+            if (!buildCancelled() && !timedOut) {
+                log.error("Error while reading output of command", e);
+            }
+        }
+    }
+
+    private void processEnded(Process p, Git git, File f, long buildStartMillis) {
+        BuildStatus finalStatus;
+        if (timedOut) {
+            log.info("Timed out build " + this + " " + (p.isAlive() ? "but could not destroy process" : "and destroyed process"));
+            finalStatus = BuildStatus.TIMED_OUT;
+        } else if (buildCancelled()) {
+            if (p.isAlive()) {
+                doubleLogIgnoreException(logWriter, "Gave up waiting for the build processes to stop after it was cancelled");
+            } else {
+                cancelLatencyMillis = System.currentTimeMillis() - cancelledAt;
+                doubleLogIgnoreException(logWriter, "Build processes stopped " + cancelLatencyMillis + "ms after the build was cancelled");
+            }
+            finalStatus = BuildStatus.CANCELLED;
+        } else if (p.exitValue() == 0) {
+            doubleLogIgnoreException(logWriter, "Completed " + f.getName() + " in " + (System.currentTimeMillis() - buildStartMillis) + "ms");
+            finalStatus = BuildStatus.SUCCESS;
+        } else {
+            doubleLogIgnoreException(logWriter, "Exit code " + p.exitValue() + " returned from " + f.getName());
+            finalStatus = BuildStatus.FAILURE;
+        }
+        changeStatus(finalStatus, git);
+    }
+
+    /**
+     * Ends the build with whatever state it is in once it has been given up on, even if its output has not finished,
+     * which happens if a process that escaped being killed still holds the output open.
+     */
+    private void giveUpAfter(long delayMillis) {
+        Deadlines.schedule(() -> processDone.complete(null), delayMillis);
+    }
+
+    private void runOnExecutor(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down, but the build should still be recorded as finished
+            task.run();
+        }
+    }
+
+    /**
+     * Called when the build's deadline passes. Kills the build straight away, or stops the fetch, or the wait for the
+     * prefetched workspace, if it has not started yet.
+     */
+    private void timeOut() {
+        Process p;
+        synchronized (lock) {
+            if (status != BuildStatus.IN_PROGRESS) {
+                return;
+            }
+            timedOut = true;
+            p = process;
+        }
+        doubleLogIgnoreException(logWriter, "Build timed out after " + timeoutMillis + "ms");
+        if (prefetch != null) {
+            prefetch.discard();
+        }
+        if (p != null) {
+            kill(p, ProcessTree.snapshot(p));
+            giveUpAfter(GIVE_UP_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Kills every process in the build's process group, along with any in the tree that left the group by starting
+     * their own session.
+     */
+    private static void kill(Process p, ProcessTree tree) {
+        ProcessGroup.signal(p, "KILL");
+        tree.destroyForcibly();
+    }
+
+    private long remainingMillis() {
+        return Math.max(1, startedAt + timeoutMillis - System.currentTimeMillis());
+    }
+
+    private Git fetchAndCreateWorkspace(RepoBranch toCheckOut) throws IOException, GitAPIException {
+        doubleLog(logWriter, "Fetching latest changes from git...");
+        return workspaces.acquire(toCheckOut, remainingMillis(), gitProgressMonitor(), logWriter);
+    }
+
+    private TextProgressMonitor gitProgressMonitor() {
+        return new TextProgressMonitor(logWriter) {
+            public boolean isCancelled() {
+                return buildCancelled() || timedOut;
+            }
+        };
+    }
+
+    /**
+     * Looks for an earlier successful build of the commit, and if there is one, uses its result for this build.
+     * @return true if an earlier result was found, in which case the build script should not be run
+     */
+    private boolean reuseResultOf(ObjectId commit) throws IOException {
+        commitIDBeforeBuild = commit;
+        BuildCache.CachedResult previous = resultCache.lookup(resultCacheKey(), System.currentTimeMillis());
+        if (previous == null) {
+            return false;
+        }
+        reusedResult = previous;
+        doubleLog(logWriter, "Commit " + commit.name() + " was already built successfully by build "
+            + previous.buildId + " so " + BuildResult.buildFile + " was not run again"
+            + (previous.logUrl == null ? "" : ". Its log is at " + previous.logUrl));
+        return true;
     }
 
-    public void cancel(BuildStatus finalState) throws InterruptedException {
-        if (!status.endState()) {
+    /**
+     * @return The key of this build in the result cache, which is only known once the commit has been checked out
+     */
+    String resultCacheKey() {
+        return BuildCache.key(repoBranch.url, commitIDBeforeBuild.name(), buildParam, repoBranch.sparsePaths);
+    }
+
+    /**
+     * Asks the build's processes to stop by sending SIGTERM to its process group, or to each process in its tree if
+     * there is no group, and returns without waiting for them. The build becomes {@link BuildStatus#CANCELLING} until
+     * they have exited, and any still running after a grace period are killed. A build that has not started its
+     * process yet ends straight away.
+     */
+    public void cancel(BuildStatus finalState) {
+        Process p;
+        synchronized (lock) {
+            if (status.endState() || status == BuildStatus.CANCELLING) {
+                return;
+            }
             if (finalState == BuildStatus.CANCELLED) {
                 doubleLogIgnoreException(logWriter, "Build cancelled.");
             }
             changeStatus(BuildStatus.CANCELLING, null);
-            ProcessTree processTree = ProcessTree.snapshot(this.process);
-            if (processTree != null) {
-                processTree.destroy(10, TimeUnit.SECONDS);
+            p = process;
+            if (p == null) {
+                changeStatus(finalState, null);
+            } else {
+                cancelledAt = System.currentTimeMillis();
+            }
+        }
+        if (p == null) {
+            if (prefetch != null) {
+                prefetch.discard();
             }
-            changeStatus(finalState, null);
+            return;
         }
+        ProcessTree processTree = ProcessTree.snapshot(p);
+        if (!ProcessGroup.signal(p, "TERM")) {
+            processTree.destroyGracefully();
+        }
+        Deadlines.schedule(() -> runOnExecutor(() -> {
+            if (!processDone.isDone()) {
+                kill(p, processTree);
+            }
+            giveUpAfter(GIVE_UP_DELAY_MILLIS);
+        }), CANCEL_GRACE_MILLIS);
+    }
+
+    /**
+     * @return The process ID of the build script, or -1 if it has not started
+     */
+    long pid() {
+        Process p = this.process;
+        return p == null ? -1 : p.pid();
     }
 
     public ProcessTree currentProcessTree() {
@@ -1,74 +1,398 @@
 package com.danielflower.restabuild.build;
 
+import org.eclipse.jgit.transport.URIish;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.ServiceUnavailableException;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntSupplier;
 
+/**
+ * Holds submitted builds until there is capacity to run them.
+ * <p>Builds are started in priority order, with the repos within each priority class taking turns, as described in
+ * {@link FairQueue}. Builds can also be limited in how many of the same repo or branch run at once, in which case a
+ * build waiting on such a limit is passed over for the next build that can run.</p>
+ */
 public class BuildQueue {
     private static final Logger log = LoggerFactory.getLogger(BuildQueue.class);
 
-    private final Queue<BuildResult> queue = new LinkedList<>();
-    private final int numberOfConcurrentBuilds;
+    private final FairQueue<BuildResult> queue;
+    private final Map<BuildPriority, WaitStats> waitStats = new EnumMap<>(BuildPriority.class);
+    private final IntSupplier maxConcurrentBuilds;
     private final int buildTimeout;
     private final DeletePolicy instanceDirDeletePolicy;
-    private int inProgressBuilds = 0;
+    private final WorkspacePool workspaces;
+    private final ExecutorService prefetchExecutor;
+    private final RepoWarmer repoWarmer;
+    private final AdmissionControl admission;
+    private final ConcurrencyLimits concurrencyLimits;
+    private final DurationEstimates durations;
+    private final SupersedePolicy supersedePolicy;
+    private final boolean deduplicate;
+    private final BuildCache resultCache;
+    private long duplicatesMerged;
+    private final Map<BuildResult, Admitted> admitted = new HashMap<>();
+    // the running builds of each repo and each branch, which the limits of queued builds are checked against
+    private final Map<String, Integer> runningPerKey = new HashMap<>();
+    private final Set<BuildResult> running = new HashSet<>();
     private volatile boolean isRunning = true;
 
-    public BuildQueue(int numberOfConcurrentBuilds, int buildTimeout, DeletePolicy instanceDirDeletePolicy) {
-        this.numberOfConcurrentBuilds = numberOfConcurrentBuilds;
+    /**
+     * @param maxConcurrentBuilds Gives the number of builds that can run at the same time, which is checked each time a
+     *                            build could start
+     * @param workspaces The pool that creates the workspaces for builds, and reuses them if enabled
+     * @param prefetchExecutor The executor used to fetch and check out the next builds in the queue while they wait
+     *                         for a slot, or null to disable prefetching
+     * @param repoWarmer The warmer that is told about each queued build so it knows which repos are busiest, or null
+     * @param admission The limits on how many builds can be queued
+     * @param concurrencyLimits The configured limits on how many builds of particular repos and branches can run at once
+     * @param policy How builds of the same priority class are ordered
+     * @param durations The estimates of how long builds take, which are updated as builds finish
+     * @param supersedePolicy Whether older builds of the same git URL, branch and build parameter are cancelled
+     *                        when a new one is queued
+     * @param deduplicate Whether a build submitted while an identical build is still queued is merged into that build
+     * @param resultCache The successful builds that builds submitted with <code>reuseResult</code> can reuse
+     */
+    public BuildQueue(IntSupplier maxConcurrentBuilds, int buildTimeout, DeletePolicy instanceDirDeletePolicy, WorkspacePool workspaces, ExecutorService prefetchExecutor, RepoWarmer repoWarmer, AdmissionControl admission, ConcurrencyLimits concurrencyLimits, QueuePolicy policy, DurationEstimates durations, SupersedePolicy supersedePolicy, boolean deduplicate, BuildCache resultCache) {
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
         this.buildTimeout = buildTimeout;
         this.instanceDirDeletePolicy = instanceDirDeletePolicy;
+        this.workspaces = workspaces;
+        this.prefetchExecutor = prefetchExecutor;
+        this.repoWarmer = repoWarmer;
+        this.admission = admission;
+        this.concurrencyLimits = concurrencyLimits;
+        this.queue = new FairQueue<>(policy);
+        this.durations = durations;
+        this.supersedePolicy = supersedePolicy;
+        this.deduplicate = deduplicate;
+        this.resultCache = resultCache;
+        for (BuildPriority priority : BuildPriority.values()) {
+            waitStats.put(priority, new WaitStats());
+        }
     }
 
     public int[] status() {
         synchronized (queue) {
-            return new int[] {queue.size(), inProgressBuilds};
+            return new int[] {queue.size(), running.size()};
+        }
+    }
+
+    /**
+     * @return The git URLs of all queued and running builds
+     */
+    public Set<URIish> gitUrlsInUse() {
+        synchronized (queue) {
+            Set<URIish> urls = new HashSet<>();
+            queue.forEach(br -> urls.add(br.repoBranch().url));
+            running.forEach(br -> urls.add(br.repoBranch().url));
+            return urls;
         }
     }
 
+    /**
+     * @return The builds that are currently running
+     */
+    public List<BuildResult> runningBuilds() {
+        synchronized (queue) {
+            return new ArrayList<>(running);
+        }
+    }
+
+    /**
+     * Stops accepting builds and cancels the running ones, as nothing waits on their processes that could be
+     * interrupted to stop them.
+     */
     public void stop() {
         isRunning = false;
+        for (BuildResult build : runningBuilds()) {
+            build.cancel();
+        }
     }
 
-    public void enqueue(BuildResult buildResult) throws IOException {
+    /**
+     * Checks whether a build could be queued, so that a build that would be rejected is not created.
+     * @param client The client submitting the build, or null if unknown
+     * @throws javax.ws.rs.ClientErrorException with a 429 status if the queue limits have been reached
+     */
+    public void checkAdmission(URIish gitUrl, String client) {
         if (!isRunning) {
             throw new ServiceUnavailableException("The build server is shutting down");
         }
         synchronized (queue) {
-            queue.add(buildResult);
-            log.info("Queued " + buildResult.id + "; new queue size: " + queue.size() + "; in progress: " + inProgressBuilds + "; total concurrent allowed: " + numberOfConcurrentBuilds);
+            admission.admit(gitUrl.toString(), client, queue.size(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Finds a queued build that a new submission can be merged into, so that a client retrying a submission, or many
+     * clients reacting to the same push, queue one build between them rather than one each.
+     * <p>Only builds that have not started are merged into, as a running build may have already fetched an older
+     * commit than the one the submitter expects to be built. For the same reason, a workspace already being fetched
+     * for the queued build is discarded and fetched again.</p>
+     * @return The queued build with the same git URL, branch, build parameter, sparse paths, priority, concurrency limit
+     * and result reuse, or null if there is none or deduplication is disabled
+     */
+    public BuildResult mergeIntoQueued(RepoBranch repoBranch, String buildParam, BuildPriority priority, ConcurrencyLimit concurrencyLimit, boolean reuseResult) {
+        if (!deduplicate) {
+            return null;
+        }
+        synchronized (queue) {
+            for (BuildResult queued : queue) {
+                if (queued.isEquivalentTo(repoBranch, buildParam, priority, concurrencyLimit, reuseResult)) {
+                    duplicatesMerged++;
+                    queued.duplicateSubmitted();
+                    return queued;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param client The client submitting the build, or null if unknown
+     * @return The given build, or, if deduplication is enabled and an identical build was queued since it was created,
+     * that build, in which case the given build is discarded
+     * @throws javax.ws.rs.ClientErrorException with a 429 status if the queue limits have been reached
+     */
+    public BuildResult enqueue(BuildResult buildResult, String client) throws IOException {
+        if (!isRunning) {
+            throw new ServiceUnavailableException("The build server is shutting down");
+        }
+        String gitUrl = buildResult.repoBranch().url.toString();
+        long expectedMillis = durations.estimateMillis(buildResult.repoBranch(), buildResult.buildParam());
+        List<BuildResult> superseded = new ArrayList<>();
+        synchronized (queue) {
+            BuildResult duplicateOf = mergeIntoQueued(buildResult.repoBranch(), buildResult.buildParam(), buildResult.priority(),
+                buildResult.concurrencyLimit(), buildResult.reuseResult());
+            if (duplicateOf != null) {
+                buildResult.discard();
+                return duplicateOf;
+            }
+            long now = System.currentTimeMillis();
+            admission.admit(gitUrl, client, queue.size(), now);
+            queue.add(buildResult, buildResult.priority(), gitUrl, expectedMillis, now);
+            admission.queued(gitUrl, client);
+            admitted.put(buildResult, new Admitted(client, concurrencyLimits.limitsFor(buildResult.repoBranch(), buildResult.concurrencyLimit())));
+            log.info("Queued " + buildResult.id + " with " + buildResult.priority() + " priority; new queue size: " + queue.size() + "; in progress: " + running.size() + "; total concurrent allowed: " + maxConcurrentBuilds.getAsInt());
+            if (supersedePolicy != SupersedePolicy.NONE) {
+                for (BuildResult queued : admitted.keySet()) {
+                    if (queued != buildResult && queued.isSameWorkAs(buildResult)) {
+                        superseded.add(queued);
+                    }
+                }
+                if (supersedePolicy == SupersedePolicy.QUEUED_AND_RUNNING) {
+                    for (BuildResult inProgress : running) {
+                        if (inProgress.isSameWorkAs(buildResult)) {
+                            superseded.add(inProgress);
+                        }
+                    }
+                }
+            }
+        }
+        for (BuildResult old : superseded) {
+            supersede(old, buildResult);
+        }
+        if (repoWarmer != null) {
+            repoWarmer.onBuildQueued(buildResult.repoBranch().url);
         }
         startIfCapacity();
+        return buildResult;
     }
 
     public void startIfCapacity() throws IOException {
         synchronized (queue) {
-            if (inProgressBuilds < numberOfConcurrentBuilds) {
-                BuildResult build = queue.poll();
-                if (build != null) {
-                    build.run((buildProcess, oldStatus, newStatus) -> {
-                        if (newStatus.endState()) {
-                            synchronized (queue) {
-                                inProgressBuilds--;
-                                log.info("Build " + build.id + " completed with status " + newStatus + "; new queue size is " + inProgressBuilds);
-                            }
-                            startIfCapacity();
+            while (running.size() < maxConcurrentBuilds.getAsInt()) {
+                BuildResult build = queue.poll(this::withinConcurrencyLimits);
+                if (build == null) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                dequeued(build);
+                admission.started(now);
+                waitStats.get(build.priority()).started(now - build.queueStart);
+                List<String> keys = ConcurrencyLimits.keysFor(build.repoBranch());
+                keys.forEach(key -> runningPerKey.merge(key, 1, Integer::sum));
+                build.run((buildProcess, oldStatus, newStatus) -> {
+                    if (newStatus.endState()) {
+                        boolean ranBuild = newStatus == BuildStatus.SUCCESS ? !build.hasReusedResult()
+                            : newStatus == BuildStatus.FAILURE || newStatus == BuildStatus.TIMED_OUT;
+                        if (ranBuild) {
+                            durations.record(build.repoBranch(), build.buildParam(), build.buildDurationMillis());
+                        }
+                        synchronized (queue) {
+                            running.remove(build);
+                            keys.forEach(key -> runningPerKey.computeIfPresent(key, (k, v) -> v == 1 ? null : v - 1));
+                            log.info("Build " + build.id + " completed with status " + newStatus + "; new queue size is " + running.size());
                         }
-                    }, buildTimeout, instanceDirDeletePolicy);
-                    inProgressBuilds++;
+                        startIfCapacity();
+                    }
+                }, buildTimeout, instanceDirDeletePolicy, workspaces, build.reuseResult() ? resultCache : null);
+                running.add(build);
+            }
+            prefetchUpcoming();
+        }
+    }
+
+    private boolean withinConcurrencyLimits(BuildResult build) {
+        Admitted entry = admitted.get(build);
+        if (entry != null) {
+            for (Map.Entry<String, Integer> limit : entry.limits.entrySet()) {
+                if (runningPerKey.getOrDefault(limit.getKey(), 0) >= limit.getValue()) {
+                    return false;
                 }
             }
         }
+        return true;
     }
 
-    public void cancel(BuildResult buildResult) throws InterruptedException {
+    /**
+     * Prefetches the builds that will be started when the next slots free up. Builds further back in the queue, or
+     * waiting on a concurrency limit, are left alone so that a long queue does not fill the disk with workspaces.
+     */
+    private void prefetchUpcoming() {
+        if (prefetchExecutor != null) {
+            int slots = maxConcurrentBuilds.getAsInt();
+            for (BuildResult upcoming : queue) {
+                if (slots <= 0) {
+                    break;
+                }
+                if (!withinConcurrencyLimits(upcoming)) {
+                    continue;
+                }
+                slots--;
+                upcoming.prefetch(prefetchExecutor, buildTimeout, workspaces);
+            }
+        }
+    }
+
+    /**
+     * Estimates where a queued build is in the queue and when it will start, assuming each build takes as long as
+     * recent builds of the same repo, branch and build parameter, and that no builds are added ahead of it.
+     * @return The queue position, starting at 1, and the estimated start time and duration if there are any
+     * estimates yet, or null if the build is not queued
+     */
+    public JSONObject queueEstimate(BuildResult build) {
+        synchronized (queue) {
+            if (!admitted.containsKey(build)) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            int slots = Math.max(1, maxConcurrentBuilds.getAsInt());
+            List<Long> runningFinishes = new ArrayList<>();
+            for (BuildResult runningBuild : running) {
+                long elapsed = Math.max(0, runningBuild.buildDurationMillis());
+                runningFinishes.add(now + Math.max(0, expectedMillis(runningBuild) - elapsed));
+            }
+            Collections.sort(runningFinishes);
+            // when more builds are running than the limit allows, the earliest to finish do not free up a slot
+            PriorityQueue<Long> slotFreeAt = new PriorityQueue<>(runningFinishes.subList(Math.max(0, runningFinishes.size() - slots), runningFinishes.size()));
+            while (slotFreeAt.size() < slots) {
+                slotFreeAt.add(now);
+            }
+            int position = 0;
+            for (BuildResult queued : queue) {
+                position++;
+                long start = slotFreeAt.poll();
+                long expected = expectedMillis(queued);
+                if (queued == build) {
+                    JSONObject estimate = new JSONObject().put("queuePosition", position);
+                    if (expected >= 0) {
+                        estimate.put("estimatedStartAt", Instant.ofEpochMilli(start).toString())
+                            .put("expectedDurationMillis", expected);
+                    }
+                    return estimate;
+                }
+                slotFreeAt.add(start + Math.max(0, expected));
+            }
+            return null;
+        }
+    }
+
+    private long expectedMillis(BuildResult build) {
+        return durations.estimateMillis(build.repoBranch(), build.buildParam());
+    }
+
+    private void supersede(BuildResult old, BuildResult newer) {
+        if (!old.isCancellable()) {
+            return;
+        }
+        log.info("Cancelling " + old.id + " as it has been superseded by " + newer.id);
+        old.supersededBy(newer.id);
+        cancel(old);
+    }
+
+    public void cancel(BuildResult buildResult) {
+        synchronized (queue) {
+            if (queue.remove(buildResult)) {
+                dequeued(buildResult);
+            }
+        }
+        buildResult.cancel();
+    }
+
+    private Admitted dequeued(BuildResult buildResult) {
+        Admitted entry = admitted.remove(buildResult);
+        admission.dequeued(buildResult.repoBranch().url.toString(), entry.client);
+        return entry;
+    }
+
+    /**
+     * @return The number of builds queued and started for each priority class, and how long they waited in the queue
+     */
+    public JSONObject toJson() {
         synchronized (queue) {
-            queue.remove(buildResult);
-            buildResult.cancel();
+            long now = System.currentTimeMillis();
+            Map<BuildPriority, long[]> queued = new EnumMap<>(BuildPriority.class);
+            for (BuildResult build : queue) {
+                long[] countAndOldest = queued.computeIfAbsent(build.priority(), p -> new long[2]);
+                countAndOldest[0]++;
+                countAndOldest[1] = Math.max(countAndOldest[1], now - build.queueStart);
+            }
+            JSONObject classes = new JSONObject();
+            waitStats.forEach((priority, stats) -> {
+                long[] countAndOldest = queued.getOrDefault(priority, new long[2]);
+                classes.put(priority.name(), new JSONObject()
+                    .put("queued", countAndOldest[0])
+                    .put("longestCurrentWaitMillis", countAndOldest[1])
+                    .put("started", stats.started)
+                    .put("averageWaitMillis", stats.started == 0 ? 0 : stats.totalWaitMillis / stats.started)
+                    .put("maxWaitMillis", stats.maxWaitMillis));
+            });
+            return new JSONObject()
+                .put("queued", queue.size())
+                .put("running", running.size())
+                .put("maxConcurrentBuilds", maxConcurrentBuilds.getAsInt())
+                .put("admission", admission.toJson(now))
+                .put("duplicatesMerged", duplicatesMerged)
+                .put("priorities", classes);
+        }
+    }
+
+    private static class Admitted {
+        private final String client;
+        private final Map<String, Integer> limits;
+
+        private Admitted(String client, Map<String, Integer> limits) {
+            this.client = client;
+            this.limits = limits;
+        }
+    }
+
+    private static class WaitStats {
+        private long started;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+
+        private void started(long waitMillis) {
+            started++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
         }
     }
 }
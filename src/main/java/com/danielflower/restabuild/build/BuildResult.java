@@ -18,13 +18,17 @@ import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BuildResult {
     private static final Logger log = LoggerFactory.getLogger(BuildResult.class);
     public static String buildFile = Config.isWindows() ? "build.bat" : "build.sh";
+    private static final int MAX_SAVED_RESOURCE_SAMPLES = 200;
 
     private final Object lock = new Object();
     public final String id;
@@ -35,22 +39,41 @@ public class BuildResult {
     private final StringBuffer buildLog = new StringBuffer();
     private final File buildLogFile;
     public final long queueStart = System.currentTimeMillis();
-    private long buildStart = -1;
-    private long buildComplete = -1;
+    private volatile long buildStart = -1;
+    private volatile long buildComplete = -1;
     private String commitIDBeforeBuild;
     private String commitIDAfterBuild;
     private List<String> createdTags;
+    private volatile long cancelLatencyMillis = -1;
     private final String buildParam;
+    private final BuildPriority priority;
+    private final ConcurrencyLimit concurrencyLimit;
     private final ExecutorService executorService;
     private final Map<String, String> environment;
     private final List<BuildResult.StringListener> logListeners = new CopyOnWriteArrayList<>();
     private volatile BuildProcess buildProcess;
+    private volatile ProcessTree processTree;
+    private volatile ResourceSeries resources;
+    private volatile JSONObject resourceSummary;
+    private volatile WorkspacePrefetch prefetch;
+    private volatile String supersededBy;
+    private final AtomicInteger duplicateSubmissions = new AtomicInteger();
+    private final boolean reuseResult;
+    private volatile BuildCache.CachedResult reusedResult;
 
 
-    public BuildResult(FileSandbox sandbox, RepoBranch repoBranch, String buildParam, String id, Map<String, String> environment, ExecutorService executorService) {
+    /**
+     * @param concurrencyLimit The limit on concurrent builds of the repo or branch that this build was submitted with, or null
+     * @param reuseResult Whether an earlier successful build of the same commit and build parameter can be used instead
+     *                    of running this build
+     */
+    public BuildResult(FileSandbox sandbox, RepoBranch repoBranch, String buildParam, BuildPriority priority, ConcurrencyLimit concurrencyLimit, boolean reuseResult, String id, Map<String, String> environment, ExecutorService executorService) {
         this.sandbox = sandbox;
         this.repoBranch = repoBranch;
         this.buildParam = buildParam;
+        this.priority = priority;
+        this.concurrencyLimit = concurrencyLimit;
+        this.reuseResult = reuseResult;
         this.executorService = executorService;
         this.buildDir = sandbox.buildDir(id);
         this.buildLogFile = new File(buildDir, "build.log");
@@ -58,6 +81,104 @@ public class BuildResult {
         this.environment = environment;
     }
 
+    public RepoBranch repoBranch() {
+        return repoBranch;
+    }
+
+    public BuildPriority priority() {
+        return priority;
+    }
+
+    public ConcurrencyLimit concurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public boolean reuseResult() {
+        return reuseResult;
+    }
+
+    /**
+     * @return true if the build succeeded by reusing the result of an earlier build rather than running
+     */
+    boolean hasReusedResult() {
+        return reusedResult != null;
+    }
+
+    public String buildParam() {
+        return buildParam;
+    }
+
+    /**
+     * @return true if the other build is of the same git URL, branch and build parameter as this one
+     */
+    boolean isSameWorkAs(BuildResult other) {
+        return isSameWorkAs(other.repoBranch, other.buildParam);
+    }
+
+    boolean isSameWorkAs(RepoBranch otherRepoBranch, String otherBuildParam) {
+        return repoBranch.url.equals(otherRepoBranch.url) && repoBranch.branch.equals(otherRepoBranch.branch)
+            && Objects.equals(buildParam == null ? "" : buildParam, otherBuildParam == null ? "" : otherBuildParam);
+    }
+
+    /**
+     * @return true if a build submitted with these values would do exactly what this one does, including checking out
+     * the same sparse paths, at the same priority and concurrency limit, and reusing an earlier result only if this
+     * one would
+     */
+    boolean isEquivalentTo(RepoBranch otherRepoBranch, String otherBuildParam, BuildPriority otherPriority, ConcurrencyLimit otherConcurrencyLimit, boolean otherReuseResult) {
+        return isSameWorkAs(otherRepoBranch, otherBuildParam) && priority == otherPriority
+            && repoBranch.sparsePaths.equals(otherRepoBranch.sparsePaths)
+            && sameLimit(concurrencyLimit, otherConcurrencyLimit) && reuseResult == otherReuseResult;
+    }
+
+    private static boolean sameLimit(ConcurrencyLimit a, ConcurrencyLimit b) {
+        return a == null ? b == null : b != null && a.max == b.max && a.scope == b.scope;
+    }
+
+    /**
+     * Records that an identical submission was given this build rather than queueing one of its own.
+     */
+    void duplicateSubmitted() {
+        duplicateSubmissions.incrementAndGet();
+        WorkspacePrefetch stale = null;
+        synchronized (lock) {
+            WorkspacePrefetch wp = this.prefetch;
+            if (wp != null && wp.hasStarted()) {
+                // it may have fetched before the commit the new submitter wants built, so it is fetched again
+                stale = wp;
+                this.prefetch = null;
+            }
+        }
+        if (stale != null) {
+            stale.discard();
+        }
+    }
+
+    /**
+     * Removes the directory of a build that was never queued.
+     */
+    public void discard() {
+        FileUtils.deleteQuietly(buildDir);
+    }
+
+    /**
+     * Records the newer build that this one is being cancelled in favour of.
+     */
+    void supersededBy(String buildId) {
+        this.supersededBy = buildId;
+    }
+
+    /**
+     * @return How long the build has been running, or took if it has finished, or -1 if it has not started
+     */
+    long buildDurationMillis() {
+        long start = buildStart;
+        if (start < 0) {
+            return -1;
+        }
+        return status.endState() ? buildComplete - start : System.currentTimeMillis() - start;
+    }
+
     public boolean hasFinished() {
         synchronized (lock) {
             return status.endState();
@@ -94,28 +215,107 @@ public class BuildResult {
             .put("gitUrl", repoBranch.url)
             .put("gitBranch", repoBranch.branch)
             .put("buildParam", buildParam == null ? "" : buildParam)
+            .put("sparsePaths", new JSONArray(repoBranch.sparsePaths))
+            .put("priority", priority.name())
+            .put("concurrencyLimit", concurrencyLimit == null ? null : concurrencyLimit.toJson())
             .put("status", status.name())
             .put("completed", status.endState())
             .put("queuedAt", Instant.ofEpochMilli(queueStart).toString())
             .put("queueDurationMillis", queueDuration)
             .put("commitIDBeforeBuild", this.commitIDBeforeBuild)
             .put("commitIDAfterBuild", this.commitIDAfterBuild)
-            .put("tagsCreated", createdTags == null ? new JSONArray() : new JSONArray(createdTags));
+            .put("tagsCreated", createdTags == null ? new JSONArray() : new JSONArray(createdTags))
+            .put("supersededBy", supersededBy)
+            .put("duplicateSubmissions", duplicateSubmissions.get())
+            .put("reuseResult", reuseResult)
+            .put("reusedResultOf", reusedResult == null ? null : reusedResult.toJson());
         if (buildStart > 0) {
             long buildDuration = buildComplete < 0 ? (System.currentTimeMillis() - buildStart) : (buildComplete - buildStart);
             build.put("buildDurationMillis", buildDuration);
         }
+        if (cancelLatencyMillis >= 0) {
+            build.put("cancelLatencyMillis", cancelLatencyMillis);
+        }
+        ResourceSeries series = this.resources;
+        JSONObject resourceUsage = series == null ? resourceSummary : series.summaryJson();
+        if (resourceUsage != null) {
+            build.put("resources", resourceUsage);
+        }
+        ProcessTree tree = this.processTree;
+        if (tree != null) {
+            build.put("processTree", tree.toJSON());
+        }
+        return build;
+    }
+
+    /**
+     * @return The process ID of the build script, or -1 if it is not running
+     */
+    long pid() {
         BuildProcess bp = this.buildProcess;
-        if (bp != null) {
-            var tree = bp.currentProcessTree();
-            if (tree != null) {
-                build.put("processTree", tree.toJSON());
+        return bp == null ? -1 : bp.pid();
+    }
+
+    /**
+     * @return The resource usage samples of this build, which are created when first sampled, or null if the build is
+     * not running
+     */
+    ResourceSeries resources(long intervalMillis, int maxSamples) {
+        synchronized (lock) {
+            if (buildProcess == null) {
+                return null;
             }
+            if (resources == null) {
+                resources = new ResourceSeries(intervalMillis, maxSamples);
+            }
+            return resources;
         }
-        return build;
     }
 
-    public void run(@NotNull BuildProcessListener buildProcessListener, int buildTimeoutMins, DeletePolicy instanceDirDeletePolicy) throws IOException {
+    /**
+     * @return The resources used by the build over time, or null if none were recorded
+     */
+    public JSONObject resourcesJson() throws IOException {
+        ResourceSeries series = this.resources;
+        if (series != null) {
+            return series.toJson(series.size());
+        }
+        File saved = new File(buildDir, "resources.json");
+        return saved.isFile() ? new JSONObject(FileUtils.readFileToString(saved, StandardCharsets.UTF_8)) : null;
+    }
+
+    /**
+     * Replaces the snapshot of the build's process tree that is shown in its JSON.
+     * @return true if the build had a process to take a snapshot of
+     */
+    boolean sampleProcessTree() {
+        BuildProcess bp = this.buildProcess;
+        ProcessTree tree = bp == null ? null : bp.currentProcessTree();
+        if (tree == null) {
+            return false;
+        }
+        synchronized (lock) {
+            // the build may have finished while the snapshot was being taken
+            if (this.buildProcess == bp) {
+                this.processTree = tree;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The CPU time used by the live processes of the build as of the last process tree snapshot, or -1 if it
+     * is not running or no snapshot has been taken
+     */
+    long cpuMillis() {
+        ProcessTree tree = this.processTree;
+        return tree == null ? -1 : tree.totalCpuMillis();
+    }
+
+    /**
+     * @param resultCache The successful builds that this build can reuse, and is added to if it succeeds, or null
+     */
+    public void run(@NotNull BuildProcessListener buildProcessListener, int buildTimeoutMins, DeletePolicy instanceDirDeletePolicy, WorkspacePool workspaces, BuildCache resultCache) throws IOException {
         long timeoutMillis = TimeUnit.MINUTES.toMillis(buildTimeoutMins);
         MultiWriter logWriter = new MultiWriter();
         BuildProcess bp = new BuildProcess((buildProcess, oldStatus, newStatus) -> {
@@ -129,11 +329,26 @@ public class BuildResult {
                     status = newStatus;
                     commitIDBeforeBuild = commitName(buildProcess.commitIDBeforeBuild());
                     commitIDAfterBuild = commitName(buildProcess.commitIDAfterBuild());
+                    if (newStatus == BuildStatus.SUCCESS && resultCache != null) {
+                        reusedResult = buildProcess.reusedResult();
+                        if (reusedResult == null) {
+                            resultCache.record(buildProcess.resultCacheKey(), id, environment.get("RESTABUILD_LOG_URL"), buildComplete);
+                        }
+                    }
                     if (newStatus.endState()) {
                         createdTags = buildProcess.createdTags();
+                        cancelLatencyMillis = buildProcess.cancelLatencyMillis();
+                        ResourceSeries series = resources;
+                        if (series != null) {
+                            FileUtils.write(new File(buildDir, "resources.json"), series.toJson(MAX_SAVED_RESOURCE_SAMPLES).toString(), StandardCharsets.UTF_8);
+                            // only the summary is kept in memory once the samples are saved
+                            resourceSummary = series.summaryJson();
+                            resources = null;
+                        }
                         FileUtils.write(new File(buildDir, "build.json"), toJson().toString(4), StandardCharsets.UTF_8);
                         buildLog.setLength(0);
                         this.buildProcess = null;
+                        this.processTree = null;
                     }
                 } finally {
                     if (newStatus.endState()) {
@@ -143,11 +358,22 @@ public class BuildResult {
                     buildProcessListener.onStatusChanged(buildProcess, oldStatus, newStatus);
                 }
             }
-        }, logWriter, executorService,timeoutMillis, environment, buildParam, repoBranch, sandbox, instanceDirDeletePolicy);
+        }, logWriter, executorService,timeoutMillis, environment, buildParam, repoBranch, workspaces, instanceDirDeletePolicy, prefetch, resultCache);
         this.buildProcess = bp;
         bp.start();
     }
 
+    /**
+     * Starts fetching and checking out the workspace for this build in the background while it waits in the queue.
+     */
+    void prefetch(Executor prefetchExecutor, int buildTimeoutMins, WorkspacePool workspaces) {
+        synchronized (lock) {
+            if (prefetch == null && buildProcess == null && status == BuildStatus.QUEUED) {
+                prefetch = WorkspacePrefetch.start(prefetchExecutor, repoBranch, workspaces, TimeUnit.MINUTES.toMillis(buildTimeoutMins));
+            }
+        }
+    }
+
     private static String commitName(ObjectId objectId) {
         return objectId == null ? null : objectId.name();
     }
@@ -161,12 +387,16 @@ public class BuildResult {
         logListeners.remove(writer);
     }
 
-    public void cancel() throws InterruptedException {
+    public void cancel() {
         BuildProcess bp = this.buildProcess;
         if (bp != null) {
             bp.cancel(BuildStatus.CANCELLED);
-        } else {
+        } else if (!status.endState()) {
             status = BuildStatus.CANCELLED;
+            WorkspacePrefetch wp = this.prefetch;
+            if (wp != null) {
+                wp.discard();
+            }
         }
     }
 
@@ -0,0 +1,52 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONObject;
+
+/**
+ * A limit on how many builds of the same repo, or of the same branch of a repo, can run at the same time.
+ * <p>A limit of 1 makes the builds exclusive, which is needed for builds that push tags.</p>
+ */
+public class ConcurrencyLimit {
+
+    public enum Scope {
+        /**
+         * The limit applies to all builds of the git URL
+         */
+        REPO,
+        /**
+         * The limit applies to builds of the same branch of the git URL
+         */
+        BRANCH
+    }
+
+    public final int max;
+    public final Scope scope;
+
+    /**
+     * @throws IllegalArgumentException if max is less than 1
+     */
+    public ConcurrencyLimit(int max, Scope scope) {
+        if (max < 1) {
+            throw new IllegalArgumentException("A concurrency limit must be at least 1");
+        }
+        this.max = max;
+        this.scope = scope;
+    }
+
+    /**
+     * @return The key shared by the builds that this limit applies to together
+     */
+    String key(RepoBranch repoBranch) {
+        return key(scope, repoBranch);
+    }
+
+    static String key(Scope scope, RepoBranch repoBranch) {
+        return scope == Scope.REPO ? repoBranch.url.toString() : repoBranch.url + "#" + repoBranch.branch;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+            .put("max", max)
+            .put("scope", scope.name());
+    }
+}
@@ -0,0 +1,99 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The concurrency limits configured for specific repos and branches on the server.
+ */
+public class ConcurrencyLimits {
+
+    private final Map<String, Integer> maxByKey;
+
+    private ConcurrencyLimits(Map<String, Integer> maxByKey) {
+        this.maxByKey = maxByKey;
+    }
+
+    public static ConcurrencyLimits none() {
+        return new ConcurrencyLimits(new HashMap<>());
+    }
+
+    /**
+     * Parses a comma separated list of <code>gitUrl=max</code> entries that limit all builds of a repo, and
+     * <code>gitUrl#branch=max</code> entries that limit the builds of a single branch.
+     * @throws IllegalArgumentException if an entry is not valid
+     */
+    public static ConcurrencyLimits parse(String text) {
+        Map<String, Integer> maxByKey = new HashMap<>();
+        if (text == null) {
+            return new ConcurrencyLimits(maxByKey);
+        }
+        for (String entry : text.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.lastIndexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("The concurrency limit " + entry + " should be in the format gitUrl=max or gitUrl#branch=max");
+            }
+            String target = entry.substring(0, equals).trim();
+            int hash = target.lastIndexOf('#');
+            String key;
+            try {
+                URIish gitUrl = new URIish(hash < 0 ? target : target.substring(0, hash));
+                key = hash < 0 ? gitUrl.toString() : gitUrl + "#" + target.substring(hash + 1);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("The concurrency limit " + entry + " has an invalid git URL: " + e.getMessage());
+            }
+            int max;
+            try {
+                max = Integer.parseInt(entry.substring(equals + 1).trim());
+            } catch (NumberFormatException e) {
+                max = 0;
+            }
+            if (max < 1) {
+                throw new IllegalArgumentException("The concurrency limit " + entry + " should end with a number that is at least 1");
+            }
+            maxByKey.put(key, max);
+        }
+        return new ConcurrencyLimits(maxByKey);
+    }
+
+    /**
+     * @return The keys of the repo and the branch of the build, which every running build counts towards whether or
+     * not it has limits of its own, so that a limit applies to all builds of its repo or branch
+     */
+    static List<String> keysFor(RepoBranch repoBranch) {
+        List<String> keys = new ArrayList<>();
+        for (ConcurrencyLimit.Scope scope : ConcurrencyLimit.Scope.values()) {
+            keys.add(ConcurrencyLimit.key(scope, repoBranch));
+        }
+        return keys;
+    }
+
+    /**
+     * Combines the configured limits for a build with the one it was submitted with, if any. Where two limits apply to
+     * the same set of builds, the lower one is used.
+     * @param requested The limit sent with the build, or null
+     * @return The maximum number of running builds allowed for each of the build's keys that has a limit
+     */
+    Map<String, Integer> limitsFor(RepoBranch repoBranch, ConcurrencyLimit requested) {
+        Map<String, Integer> limits = new HashMap<>();
+        for (String key : keysFor(repoBranch)) {
+            Integer configured = maxByKey.get(key);
+            if (configured != null) {
+                limits.put(key, configured);
+            }
+        }
+        if (requested != null) {
+            limits.merge(requested.key(repoBranch), requested.max, Math::min);
+        }
+        return limits;
+    }
+}
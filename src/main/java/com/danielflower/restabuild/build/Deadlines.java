@@ -0,0 +1,33 @@
+package com.danielflower.restabuild.build;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single timer that all build deadlines are registered with, so that waiting for a build to time out, or for a
+ * cancelled build to stop, does not hold a thread per build.
+ * <p>Tasks run on the timer thread, so they must be quick, such as completing a future or handing work over to the
+ * build executor. Cancelled deadlines are removed straight away, as most builds finish well before their timeout.</p>
+ */
+class Deadlines {
+
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "restabuild-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * @return The deadline, which can be cancelled if it is no longer needed
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
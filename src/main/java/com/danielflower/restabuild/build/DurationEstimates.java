@@ -0,0 +1,55 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimates how long builds will take from how long recent builds of the same git URL, branch and build parameter
+ * took.
+ * <p>Each estimate is an exponentially weighted moving average, so that it follows changes to the build rather than
+ * being held back by old runs. Builds that have never run are estimated with the average over all builds.</p>
+ */
+public class DurationEstimates {
+    static final double WEIGHT_OF_LATEST = 0.3;
+    private static final int MAX_KEYS = 10000;
+
+    private final Map<String, Double> byKey = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+    private double overall = -1;
+    private long recorded;
+
+    static String key(RepoBranch repoBranch, String buildParam) {
+        return repoBranch.url + "#" + repoBranch.branch + " " + (buildParam == null ? "" : buildParam);
+    }
+
+    synchronized void record(RepoBranch repoBranch, String buildParam, long durationMillis) {
+        byKey.merge(key(repoBranch, buildParam), (double) durationMillis, DurationEstimates::average);
+        overall = overall < 0 ? durationMillis : average(overall, durationMillis);
+        recorded++;
+    }
+
+    private static double average(double current, double latest) {
+        return current + WEIGHT_OF_LATEST * (latest - current);
+    }
+
+    /**
+     * @return The expected duration of a build, or -1 if no builds have finished yet
+     */
+    synchronized long estimateMillis(RepoBranch repoBranch, String buildParam) {
+        Double estimate = byKey.get(key(repoBranch, buildParam));
+        return Math.round(estimate != null ? estimate : overall);
+    }
+
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+            .put("recorded", recorded)
+            .put("keys", byKey.size())
+            .put("overallAverageMillis", Math.round(overall));
+    }
+}
@@ -0,0 +1,163 @@
+package com.danielflower.restabuild.build;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A queue that orders items by priority class, and within each class shares turns fairly between groups, such as
+ * the git URLs of builds.
+ * <p>Within a class this is start-time fair queueing: each item is tagged with one more than the later of the last
+ * tag given to its group and the tag of the item most recently taken from the class. A group that queues many items
+ * at once therefore gets one turn per round rather than running all of them before a newer group gets a turn, while
+ * the items of a single group keep their order.</p>
+ * <p>With {@link QueuePolicy#SHORTEST_EXPECTED_FIRST}, items within a class are instead ordered by the time they
+ * were added plus how long they are expected to take. At any moment that is the same order as expected duration less
+ * time waited, so it ages items without the order needing to be recalculated as time passes.</p>
+ * <p>Items are held in a sorted set so that iterating is in the order they will be taken, and removing an item from
+ * anywhere in the queue is O(log n). This class is not thread safe.</p>
+ */
+class FairQueue<T> implements Iterable<T> {
+
+    private final TreeSet<Entry<T>> ordered = new TreeSet<>();
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+    private final Map<BuildPriority, Map<String, Group>> groups = new EnumMap<>(BuildPriority.class);
+    private final long[] virtualTime = new long[BuildPriority.values().length];
+    private final QueuePolicy policy;
+    private long sequence;
+
+    FairQueue() {
+        this(QueuePolicy.FAIR);
+    }
+
+    FairQueue(QueuePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Adds an item, unless it is already queued.
+     * @param group The group, such as a git URL, that the item shares turns with
+     */
+    void add(T item, BuildPriority priority, String group) {
+        add(item, priority, group, 0, 0);
+    }
+
+    /**
+     * Adds an item, unless it is already queued.
+     * @param group The group, such as a git URL, that the item shares turns with
+     * @param expectedMillis How long the item is expected to take, which is only used by
+     *                       {@link QueuePolicy#SHORTEST_EXPECTED_FIRST}
+     * @param now The current time in milliseconds
+     */
+    void add(T item, BuildPriority priority, String group, long expectedMillis, long now) {
+        if (entries.containsKey(item)) {
+            return;
+        }
+        Group g = groups.computeIfAbsent(priority, p -> new HashMap<>()).computeIfAbsent(group, k -> new Group());
+        g.lastTag = Math.max(g.lastTag, virtualTime[priority.ordinal()]) + 1;
+        g.queued++;
+        long tag = policy == QueuePolicy.SHORTEST_EXPECTED_FIRST ? now + Math.max(0, expectedMillis) : g.lastTag;
+        Entry<T> entry = new Entry<>(item, priority, group, tag, sequence++);
+        ordered.add(entry);
+        entries.put(item, entry);
+    }
+
+    /**
+     * @return The next item, or null if the queue is empty
+     */
+    T poll() {
+        return poll(item -> true);
+    }
+
+    /**
+     * Takes the first item that can be taken, leaving any before it in place so that they do not hold up the rest
+     * of the queue.
+     * @return The next item that the predicate accepts, or null if there are none
+     */
+    T poll(Predicate<T> eligible) {
+        for (Iterator<Entry<T>> it = ordered.iterator(); it.hasNext(); ) {
+            Entry<T> entry = it.next();
+            if (eligible.test(entry.item)) {
+                it.remove();
+                int priority = entry.priority.ordinal();
+                virtualTime[priority] = Math.max(virtualTime[priority], entry.tag);
+                forget(entry);
+                return entry.item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the item was queued
+     */
+    boolean remove(T item) {
+        Entry<T> entry = entries.get(item);
+        if (entry == null) {
+            return false;
+        }
+        ordered.remove(entry);
+        forget(entry);
+        return true;
+    }
+
+    private void forget(Entry<T> entry) {
+        entries.remove(entry.item);
+        Map<String, Group> classGroups = groups.get(entry.priority);
+        Group group = classGroups.get(entry.group);
+        if (--group.queued == 0) {
+            // anything it was owed or owes is settled once it has nothing queued
+            classGroups.remove(entry.group);
+        }
+    }
+
+    int size() {
+        return ordered.size();
+    }
+
+    /**
+     * @return The items in the order they will be taken, if nothing else is added
+     */
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<Entry<T>> it = ordered.iterator();
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public T next() {
+                return it.next().item;
+            }
+        };
+    }
+
+    private static class Group {
+        private long lastTag;
+        private int queued;
+    }
+
+    private static class Entry<T> implements Comparable<Entry<T>> {
+        private final T item;
+        private final BuildPriority priority;
+        private final String group;
+        private final long tag;
+        private final long sequence;
+
+        private Entry(T item, BuildPriority priority, String group, long tag, long sequence) {
+            this.item = item;
+            this.priority = priority;
+            this.group = group;
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry<T> o) {
+            int result = priority.compareTo(o.priority);
+            if (result == 0) {
+                result = Long.compare(tag, o.tag);
+            }
+            return result == 0 ? Long.compare(sequence, o.sequence) : result;
+        }
+    }
+}
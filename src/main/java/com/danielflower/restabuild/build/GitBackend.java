@@ -0,0 +1,56 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Performs the git operations that change repos on disk, which are the fetches into the local bare repos and the
+ * creation and resetting of workspaces. Reading from repos, such as finding tags, is always done with JGit.
+ */
+public interface GitBackend {
+
+    /**
+     * Clones the remote into the given directory as a bare repo if it has not been cloned yet, and then fetches all
+     * branches and tags from it.
+     */
+    void fetchIntoBareRepo(File repoDir, URIish gitUrl, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException;
+
+    /**
+     * Clones the local bare repo into the given empty directory with the branch checked out, and then sets the origin
+     * of the new workspace to the user's remote URL so that anything the build pushes goes to the right place.
+     * @param sparsePaths If not empty, only the files in the root of the repo and in these directories are checked
+     *                    out, although the other files are still in the index so that commits do not delete them
+     */
+    void cloneFromBareRepo(File repoDir, URIish gitUrl, String branch, List<String> sparsePaths, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException;
+
+    /**
+     * Clones the local bare repo into the given empty directory with the given commit checked out as a detached HEAD,
+     * which is how submodules are checked out, and then sets the origin to the user's remote URL.
+     */
+    void cloneCommitFromBareRepo(File repoDir, URIish gitUrl, ObjectId commit, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException;
+
+    /**
+     * Updates the remote branches and tags of a workspace from the local bare repo, which is where it was cloned from,
+     * deleting any that no longer exist.
+     */
+    void fetchFromBareRepo(File workspace, File repoDir, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException;
+
+    /**
+     * Discards changes to tracked files and checks out the head of the given remote branch as a local branch of the
+     * same name that tracks it.
+     */
+    void checkoutRemoteBranch(File workspace, String branch) throws GitAPIException, IOException;
+
+    /**
+     * Deletes untracked files and directories from the workspace.
+     * @param keepIgnoredFiles If true then files ignored by git are not deleted
+     */
+    void clean(File workspace, boolean keepIgnoredFiles) throws GitAPIException, IOException;
+
+}
@@ -0,0 +1,18 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * The {@link GitBackend} used to fetch repos and create workspaces.
+ */
+public enum GitBackendType {
+
+    /**
+     * Git operations are run in-process with JGit, so git does not need to be installed.
+     */
+    JGIT,
+
+    /**
+     * Git operations are run with the git command line, which is faster for large repos.
+     */
+    NATIVE
+
+}
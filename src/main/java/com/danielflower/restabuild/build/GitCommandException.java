@@ -0,0 +1,12 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+/**
+ * Thrown when a command run by the {@link NativeGitBackend} fails, so that it is reported the same way as JGit errors.
+ */
+public class GitCommandException extends GitAPIException {
+    public GitCommandException(String message) {
+        super(message);
+    }
+}
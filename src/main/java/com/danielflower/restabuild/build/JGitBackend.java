@@ -0,0 +1,233 @@
+package com.danielflower.restabuild.build;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.CreateBranchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static com.danielflower.restabuild.FileSandbox.dirPath;
+
+/**
+ * A git backend that runs everything in-process with JGit, so no git installation is needed.
+ */
+public class JGitBackend implements GitBackend {
+    private static final Logger log = LoggerFactory.getLogger(JGitBackend.class);
+
+    @Override
+    public void fetchIntoBareRepo(File repoDir, URIish gitUrl, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        Git git;
+        try {
+            try {
+                git = Git.open(repoDir);
+                log.info("Using existing git repo at " + dirPath(repoDir));
+            } catch (RepositoryNotFoundException e) {
+                log.info("Cloning " + gitUrl + " to " + dirPath(repoDir));
+                git = Git.cloneRepository()
+                    .setProgressMonitor(progressMonitor)
+                    .setURI(gitUrl.toString())
+                    .setBare(true)
+                    .setDirectory(repoDir)
+                    .call();
+            }
+            git.remoteSetUrl().setRemoteName("origin").setRemoteUri(gitUrl).call();
+        } catch (IOException | GitAPIException e) {
+            throw new RestaBuildException("Could not open or create git repo at " + repoDir, e);
+        }
+        try {
+            git.fetch().setRemote("origin")
+                .setProgressMonitor(progressMonitor).setTimeout((int) TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)).call();
+        } finally {
+            git.close();
+        }
+    }
+
+    @Override
+    public void cloneFromBareRepo(File repoDir, URIish gitUrl, String branch, List<String> sparsePaths, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        // Clone from the bare repo on the local disk....
+        try (Git copy = Git.cloneRepository()
+            .setBranch(branch)
+            .setURI(repoDir.toURI().toString())
+            .setBare(false)
+            .setNoCheckout(!sparsePaths.isEmpty())
+            .setDirectory(dest)
+            .setProgressMonitor(progressMonitor)
+            .call()) {
+
+            // ...but set the origin to the remote URL the user selected so that if their build pushes anything to origin it goes to the right place
+            copy.remoteSetUrl().setRemoteName("origin").setRemoteUri(gitUrl).call();
+
+            if (!sparsePaths.isEmpty()) {
+                sparseCheckout(copy.getRepository(), branch, sparsePaths);
+            }
+        }
+    }
+
+    @Override
+    public void cloneCommitFromBareRepo(File repoDir, URIish gitUrl, ObjectId commit, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException {
+        try (Git copy = Git.cloneRepository()
+            .setURI(repoDir.toURI().toString())
+            .setNoCheckout(true)
+            .setDirectory(dest)
+            .setProgressMonitor(progressMonitor)
+            .call()) {
+            copy.remoteSetUrl().setRemoteName("origin").setRemoteUri(gitUrl).call();
+            copy.checkout().setName(commit.name()).call();
+        }
+    }
+
+    /**
+     * JGit has no sparse checkout support, so this builds the index from the branch's tree and writes only the files
+     * in the sparse directories. The other entries are marked as assumed unchanged so that neither JGit nor git see
+     * them as deleted. The sparse checkout config that git would have written is also written, so that git commands
+     * run by the build treat the workspace the same way.
+     */
+    private static void sparseCheckout(Repository repo, String branch, List<String> sparsePaths) throws GitAPIException, IOException {
+        String remoteBranch = Constants.R_REMOTES + "origin/" + branch;
+        try (Git git = new Git(repo)) {
+            git.branchCreate().setName(branch).setStartPoint(remoteBranch).setForce(true)
+                .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK).call();
+        }
+        RefUpdate head = repo.updateRef(Constants.HEAD);
+        head.link(Constants.R_HEADS + branch);
+
+        StoredConfig config = repo.getConfig();
+        config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout", true);
+        config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckoutCone", true);
+        config.save();
+        FileUtils.writeLines(new File(repo.getDirectory(), "info" + File.separator + "sparse-checkout"), "UTF-8", conePatterns(sparsePaths), "\n");
+
+        DirCache index = repo.lockDirCache();
+        try (ObjectReader reader = repo.newObjectReader(); RevWalk revWalk = new RevWalk(reader); TreeWalk treeWalk = new TreeWalk(repo, reader)) {
+            DirCacheBuilder builder = index.builder();
+            treeWalk.addTree(revWalk.parseCommit(repo.resolve(remoteBranch)).getTree());
+            treeWalk.setRecursive(true);
+            // the walk reads .gitattributes so that line endings and smudge filters are applied as a checkout would
+            treeWalk.setOperationType(TreeWalk.OperationType.CHECKOUT_OP);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(treeWalk.getFileMode(0));
+                entry.setObjectId(treeWalk.getObjectId(0));
+                if (isInSparseCone(path, sparsePaths) && !FileMode.GITLINK.equals(entry.getFileMode())) {
+                    DirCacheCheckout.CheckoutMetadata metadata = new DirCacheCheckout.CheckoutMetadata(
+                        treeWalk.getEolStreamType(TreeWalk.OperationType.CHECKOUT_OP),
+                        treeWalk.getFilterCommand(Constants.ATTR_FILTER_TYPE_SMUDGE));
+                    DirCacheCheckout.checkoutEntry(repo, entry, reader, false, metadata);
+                } else {
+                    entry.setAssumeValid(true);
+                }
+                builder.add(entry);
+            }
+            builder.commit();
+        } finally {
+            index.unlock();
+        }
+    }
+
+    /**
+     * @return The patterns that <code>git sparse-checkout set --cone</code> writes for the given directories
+     */
+    static List<String> conePatterns(List<String> sparsePaths) {
+        SortedSet<String> parents = new TreeSet<>();
+        SortedSet<String> dirs = new TreeSet<>(sparsePaths);
+        // a directory inside another listed directory is already included
+        dirs.removeIf(dir -> sparsePaths.stream().anyMatch(other -> dir.startsWith(other + "/")));
+        for (String dir : dirs) {
+            for (int slash = dir.indexOf('/'); slash > -1; slash = dir.indexOf('/', slash + 1)) {
+                parents.add(dir.substring(0, slash));
+            }
+        }
+        List<String> patterns = new ArrayList<>(Arrays.asList("/*", "!/*/"));
+        for (String parent : parents) {
+            patterns.add("/" + parent + "/");
+            patterns.add("!/" + parent + "/*/");
+        }
+        for (String dir : dirs) {
+            patterns.add("/" + dir + "/");
+        }
+        return patterns;
+    }
+
+    /**
+     * Uses the same rules as git's cone mode: files in the root, in the sparse directories (recursively) and directly
+     * in any of their parent directories are included.
+     */
+    static boolean isInSparseCone(String path, List<String> sparsePaths) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            return true;
+        }
+        String parent = path.substring(0, lastSlash);
+        for (String dir : sparsePaths) {
+            if (path.startsWith(dir + "/") || dir.startsWith(parent + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void fetchFromBareRepo(File workspace, File repoDir, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        try (Git git = Git.open(workspace)) {
+            git.fetch()
+                .setRemote(repoDir.toURI().toString())
+                .setRefSpecs("+refs/heads/*:refs/remotes/origin/*", "+refs/tags/*:refs/tags/*")
+                .setRemoveDeletedRefs(true)
+                .setProgressMonitor(progressMonitor)
+                .call();
+        }
+    }
+
+    @Override
+    public void checkoutRemoteBranch(File workspace, String branch) throws GitAPIException, IOException {
+        String remoteBranch = Constants.R_REMOTES + "origin/" + branch;
+        try (Git git = Git.open(workspace)) {
+            git.reset().setMode(ResetCommand.ResetType.HARD).call();
+            git.checkout().setName(remoteBranch).call();
+            git.branchCreate().setName(branch).setStartPoint(remoteBranch).setForce(true)
+                .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK).call();
+            git.checkout().setName(branch).call();
+        }
+    }
+
+    @Override
+    public void clean(File workspace, boolean keepIgnoredFiles) throws GitAPIException, IOException {
+        try (Git git = Git.open(workspace)) {
+            git.clean().setCleanDirectories(true).setForce(true).setIgnore(keepIgnoredFiles).call();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JGit";
+    }
+}
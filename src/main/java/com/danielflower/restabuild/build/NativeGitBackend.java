@@ -0,0 +1,243 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.RefNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.danielflower.restabuild.FileSandbox.dirPath;
+
+/**
+ * A git backend that runs the <code>git</code> command line tool, which negotiates fetches and checks out files
+ * faster than JGit on large repos, and makes local clones cheap by hardlinking the objects of the bare repo.
+ * <p>The progress that git reports is passed on to the given progress monitor, so it appears in the build log in
+ * the same way as JGit's progress does.</p>
+ */
+public class NativeGitBackend implements GitBackend {
+    private static final Logger log = LoggerFactory.getLogger(NativeGitBackend.class);
+    private static final Pattern PROGRESS = Pattern.compile("^(?:remote: )?([^:]+):\\s+\\d+% \\((\\d+)/(\\d+)\\).*$");
+
+    private final String executable;
+    private final ExecutorService outputReaders;
+
+    /**
+     * @param executable The git command, such as <code>git</code> or the full path to it
+     * @param outputReaders The executor that reads the output of each git command while it runs
+     */
+    public NativeGitBackend(String executable, ExecutorService outputReaders) {
+        this.executable = executable;
+        this.outputReaders = outputReaders;
+    }
+
+    @Override
+    public void fetchIntoBareRepo(File repoDir, URIish gitUrl, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        if (new File(repoDir, Constants.HEAD).isFile()) {
+            log.info("Using existing git repo at " + dirPath(repoDir));
+        } else {
+            // the same as cloning, but works even if the directory is not empty
+            log.info("Cloning " + gitUrl + " to " + dirPath(repoDir));
+            run(repoDir, timeoutMillis, progressMonitor, "init", "--bare");
+            run(repoDir, timeoutMillis, progressMonitor, "config", "remote.origin.fetch", "+refs/heads/*:refs/heads/*");
+        }
+        run(repoDir, timeoutMillis, progressMonitor, "config", "remote.origin.url", gitUrl.toString());
+        run(repoDir, timeoutMillis, progressMonitor, "fetch", "--progress", "--tags", "origin");
+    }
+
+    @Override
+    public void cloneFromBareRepo(File repoDir, URIish gitUrl, String branch, List<String> sparsePaths, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        try (Git bare = Git.open(repoDir)) {
+            if (bare.getRepository().exactRef(Constants.R_HEADS + branch) == null) {
+                throw new RefNotFoundException("Remote branch '" + branch + "' not found in upstream origin");
+            }
+        }
+        if (sparsePaths.isEmpty()) {
+            run(dest, timeoutMillis, progressMonitor, "clone", "--progress", "--branch", branch, dirPath(repoDir), dirPath(dest));
+        } else {
+            run(dest, timeoutMillis, progressMonitor, "clone", "--progress", "--no-checkout", "--branch", branch, dirPath(repoDir), dirPath(dest));
+            List<String> args = new ArrayList<>(Arrays.asList("sparse-checkout", "set", "--cone", "--"));
+            args.addAll(sparsePaths);
+            run(dest, timeoutMillis, progressMonitor, args.toArray(new String[0]));
+            run(dest, timeoutMillis, progressMonitor, "read-tree", "-mu", "HEAD");
+        }
+        run(dest, timeoutMillis, progressMonitor, "remote", "set-url", "origin", gitUrl.toString());
+    }
+
+    @Override
+    public void cloneCommitFromBareRepo(File repoDir, URIish gitUrl, ObjectId commit, File dest, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        run(dest, timeoutMillis, progressMonitor, "clone", "--progress", "--no-checkout", dirPath(repoDir), dirPath(dest));
+        run(dest, timeoutMillis, progressMonitor, "checkout", "--quiet", "--detach", commit.name());
+        run(dest, timeoutMillis, progressMonitor, "remote", "set-url", "origin", gitUrl.toString());
+    }
+
+    @Override
+    public void fetchFromBareRepo(File workspace, File repoDir, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        run(workspace, timeoutMillis, progressMonitor, "fetch", "--progress", "--prune", dirPath(repoDir),
+            "+refs/heads/*:refs/remotes/origin/*", "+refs/tags/*:refs/tags/*");
+    }
+
+    @Override
+    public void checkoutRemoteBranch(File workspace, String branch) throws GitAPIException, IOException {
+        run(workspace, Long.MAX_VALUE, null, "reset", "--hard");
+        run(workspace, Long.MAX_VALUE, null, "checkout", "--force", "-B", branch, "--track", "origin/" + branch);
+    }
+
+    @Override
+    public void clean(File workspace, boolean keepIgnoredFiles) throws GitAPIException, IOException {
+        if (keepIgnoredFiles) {
+            run(workspace, Long.MAX_VALUE, null, "clean", "-ffd");
+        } else {
+            run(workspace, Long.MAX_VALUE, null, "clean", "-ffdx");
+        }
+    }
+
+    /**
+     * Runs git in the given directory, stopping it if it takes longer than the timeout or the progress monitor
+     * reports that it has been cancelled.
+     */
+    private void run(File dir, long timeoutMillis, ProgressMonitor progressMonitor, String... args) throws GitAPIException, IOException {
+        List<String> command = new ArrayList<>();
+        command.add(executable);
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+            .directory(dir)
+            .redirectErrorStream(true);
+        processBuilder.environment().put("GIT_TERMINAL_PROMPT", "0");
+        log.debug("Running " + String.join(" ", command) + " in " + dirPath(dir));
+        Process process = processBuilder.start();
+
+        ProgressReader output = new ProgressReader(progressMonitor);
+        Future<?> reader = outputReaders.submit(() -> output.read(process.getInputStream()));
+
+        long start = System.currentTimeMillis();
+        try {
+            while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+                boolean cancelled = progressMonitor != null && progressMonitor.isCancelled();
+                if (cancelled || System.currentTimeMillis() - start > timeoutMillis) {
+                    process.destroyForcibly();
+                    throw new GitCommandException("git " + args[0] + (cancelled ? " was cancelled" : " timed out after " + timeoutMillis + "ms"));
+                }
+            }
+            reader.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // the output is only used for error messages, so whatever was read is enough
+            log.debug("Did not finish reading the output of git " + args[0], e);
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running git " + args[0]);
+        }
+        if (process.exitValue() != 0) {
+            throw new GitCommandException("git " + args[0] + " returned exit code " + process.exitValue() + ": " + output.lastLines());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "native git (" + executable + ")";
+    }
+
+    /**
+     * Reads git's output, turning progress lines such as <code>Receiving objects:  45% (450/1000)</code> into
+     * progress monitor updates and keeping the last few other lines for error messages.
+     */
+    private static class ProgressReader {
+        private final ProgressMonitor progressMonitor;
+        private final Deque<String> lastLines = new ArrayDeque<>();
+        private String task;
+        private int done;
+
+        private ProgressReader(ProgressMonitor progressMonitor) {
+            this.progressMonitor = progressMonitor;
+        }
+
+        private void read(InputStream stream) {
+            StringBuilder line = new StringBuilder();
+            try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                int c;
+                while ((c = reader.read()) > -1) {
+                    // progress is redrawn with carriage returns, so they end lines just like new lines
+                    if (c == '\r' || c == '\n') {
+                        onLine(line.toString());
+                        line.setLength(0);
+                    } else {
+                        line.append((char) c);
+                    }
+                }
+                onLine(line.toString());
+            } catch (IOException e) {
+                log.debug("Error while reading git output", e);
+            }
+            endTask();
+        }
+
+        private void onLine(String line) {
+            if (line.isEmpty()) {
+                return;
+            }
+            Matcher matcher = PROGRESS.matcher(line);
+            if (matcher.matches() && progressMonitor != null) {
+                String title = matcher.group(1).trim();
+                int completed = Integer.parseInt(matcher.group(2));
+                if (!title.equals(task)) {
+                    endTask();
+                    task = title;
+                    done = 0;
+                    progressMonitor.beginTask(title, Integer.parseInt(matcher.group(3)));
+                }
+                if (completed > done) {
+                    progressMonitor.update(completed - done);
+                    done = completed;
+                }
+                if (line.contains(", done.")) {
+                    endTask();
+                }
+            } else if (!matcher.matches()) {
+                log.debug(line);
+                synchronized (lastLines) {
+                    lastLines.add(line);
+                    if (lastLines.size() > 5) {
+                        lastLines.removeFirst();
+                    }
+                }
+            }
+        }
+
+        private void endTask() {
+            if (task != null) {
+                progressMonitor.endTask();
+                task = null;
+            }
+        }
+
+        private String lastLines() {
+            synchronized (lastLines) {
+                return String.join(" ", lastLines);
+            }
+        }
+    }
+}
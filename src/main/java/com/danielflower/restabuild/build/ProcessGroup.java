@@ -0,0 +1,87 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts each build script in its own session, so that the script and every process it starts share a process group
+ * that can be signalled all at once, rather than walking the process tree and signalling one process at a time while
+ * processes exit, get reparented, or start new ones.
+ * <p>This needs the <code>setsid</code> and <code>kill</code> commands, so on Windows, or where they cannot be
+ * found, processes are stopped using a {@link ProcessTree} instead. A process that starts its own session leaves the
+ * group, so a snapshot of the tree is still used to kill anything left over once the grace period is up.</p>
+ */
+class ProcessGroup {
+    private static final Logger log = LoggerFactory.getLogger(ProcessGroup.class);
+
+    private static final String setsid = Config.isWindows() ? null : findOnPath("setsid");
+    private static final String kill = Config.isWindows() ? null : findOnPath("kill");
+
+    static boolean supported() {
+        return setsid != null && kill != null;
+    }
+
+    /**
+     * @return The command prefixed so that it runs as the leader of a new session, if process groups are supported,
+     * with the exit code of the command
+     */
+    static List<String> command(List<String> command) {
+        if (!supported()) {
+            return command;
+        }
+        List<String> wrapped = new ArrayList<>();
+        wrapped.add(setsid);
+        // setsid forks if the process is already a group leader, so it must wait for the command to keep the build running
+        wrapped.add("-w");
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /**
+     * Sends a signal to every process in the group led by the given process.
+     * @param signal The signal name, such as <code>TERM</code> or <code>KILL</code>
+     * @return true if the group was signalled, or false if process groups are not supported or the signal could not
+     * be sent, in which case the caller should fall back to signalling the process tree
+     */
+    static boolean signal(Process leader, String signal) {
+        if (!supported()) {
+            return false;
+        }
+        try {
+            Process killer = new ProcessBuilder(kill, "-" + signal, "--", "-" + leader.pid())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if (killer.waitFor(5, TimeUnit.SECONDS) && killer.exitValue() == 0) {
+                log.info("Sent SIG" + signal + " to process group " + leader.pid());
+                return true;
+            }
+            killer.destroyForcibly();
+            log.info("Could not send SIG" + signal + " to process group " + leader.pid() + " so the process tree will be signalled instead");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Error while sending SIG" + signal + " to process group " + leader.pid() + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static String findOnPath(String command) {
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                File file = new File(dir, command);
+                if (file.isFile() && file.canExecute()) {
+                    return file.getAbsolutePath();
+                }
+            }
+        }
+        return null;
+    }
+}
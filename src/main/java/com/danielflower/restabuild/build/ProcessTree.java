@@ -1,6 +1,5 @@
 package com.danielflower.restabuild.build;
 
-import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -9,57 +8,46 @@ import org.slf4j.LoggerFactory;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+/**
+ * A snapshot of a process and its descendants. The JSON describes the processes as they were when the snapshot was
+ * taken, so it can be rendered any number of times without reading /proc again.
+ */
 public class ProcessTree {
     private static final Logger log = LoggerFactory.getLogger(ProcessTree.class);
     public final long pid;
     public final List<ProcessTree> children;
     public final ProcessHandle.Info info;
     public final ProcessHandle handle;
+    private final boolean aliveWhenTaken;
 
-    public void destroy(long timeout, TimeUnit unit) throws InterruptedException {
-        recursiveDestroy(pid, unit.toMillis(timeout), System.currentTimeMillis());
-    }
-
-    private void recursiveDestroy(long ancestorPid, long maxDuration, long startTime) throws InterruptedException {
-        long newDuration = Math.max(0, maxDuration - (System.currentTimeMillis() - startTime));
+    /**
+     * Asks every process in the tree to stop, without waiting for them to do so.
+     */
+    public void destroyGracefully() {
         if (handle.isAlive()) {
             handle.destroy();
-            log.info(prefix(ancestorPid) + pid + " graceful destroy invoked");
-
-            try {
-                handle.onExit().get(newDuration, TimeUnit.MILLISECONDS);
-            } catch (ExecutionException e) {
-                log.error(prefix(ancestorPid) + "Error running exit", e);
-            } catch (TimeoutException e) {
-                log.warn(prefix(ancestorPid) + "Timed out waiting for " + pid + " to exit so will forcibly destroy");
-            }
-
-            if (handle.isAlive()) {
-                log.info(prefix(ancestorPid) + pid + " graceful destroy invoked");
-                handle.destroyForcibly();
-                try {
-                    handle.onExit().get(100, TimeUnit.MILLISECONDS);
-                } catch (Exception e) {
-                    log.error(prefix(ancestorPid) + "Error foricbly destroying " + pid, e);
-                }
-            }
-        } else {
-            log.info(prefix(ancestorPid) + pid + " is already destroyed");
+            log.info("Killing process tree> " + pid + " graceful destroy invoked");
         }
         for (ProcessTree child : children) {
-            child.recursiveDestroy(ancestorPid, newDuration, startTime);
+            child.destroyGracefully();
         }
     }
 
-    @NotNull
-    private String prefix(long ancestorPid) {
-        return "Killing process tree " + ancestorPid + "> ";
+    /**
+     * Kills every process in the tree that is still alive, without waiting for them to exit.
+     */
+    public void destroyForcibly() {
+        if (handle.isAlive()) {
+            handle.destroyForcibly();
+            log.info("Killing process tree> " + pid + " forcible destroy invoked");
+        }
+        for (ProcessTree child : children) {
+            child.destroyForcibly();
+        }
     }
 
     public static ProcessTree snapshot(Process process) {
@@ -67,6 +55,9 @@ public class ProcessTree {
         return create(process.toHandle());
     }
 
+    /**
+     * @return Whether the process is alive now, rather than when the snapshot was taken
+     */
     public boolean isAlive() {
         return handle.isAlive();
     }
@@ -80,9 +71,21 @@ public class ProcessTree {
 
     private ProcessTree(long pid, List<ProcessTree> children, ProcessHandle handle) {
         this.pid = pid;
-        this.children = children;
+        this.children = Collections.unmodifiableList(children);
         this.info = handle.info();
         this.handle = handle;
+        this.aliveWhenTaken = handle.isAlive();
+    }
+
+    /**
+     * @return The CPU time used by this process and its descendants that were alive when the snapshot was taken
+     */
+    public long totalCpuMillis() {
+        long total = info.totalCpuDuration().map(Duration::toMillis).orElse(0L);
+        for (ProcessTree child : children) {
+            total += child.totalCpuMillis();
+        }
+        return total;
     }
 
     public JSONObject toJSON() {
@@ -94,7 +97,7 @@ public class ProcessTree {
             .put("cpuDuration", info.totalCpuDuration().map(Duration::toString).orElse(null))
             .put("cpuDurationMillis", info.totalCpuDuration().map(Duration::toMillis).orElse(null))
             .put("children", new JSONArray(children.stream().map(ProcessTree::toJSON).collect(Collectors.toList())))
-            .put("isAlive", isAlive());
+            .put("isAlive", aliveWhenTaken);
     }
 
 }
@@ -0,0 +1,60 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a snapshot of the process tree of each running build at a fixed interval, which is what is shown when builds
+ * are viewed. Reading a process tree walks /proc for every process in it, so this stops the work done growing with
+ * the number of times builds are viewed.
+ */
+public class ProcessTreeSampler {
+    private static final Logger log = LoggerFactory.getLogger(ProcessTreeSampler.class);
+
+    private final long intervalMillis;
+    private long samples;
+    private long treesSampled;
+    private long lastSampleMillis = -1;
+
+    public ProcessTreeSampler(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start(ScheduledExecutorService scheduler, BuildQueue buildQueue) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sample(buildQueue.runningBuilds());
+            } catch (Exception e) {
+                log.error("Error while sampling build process trees", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void sample(Collection<BuildResult> running) {
+        long start = System.currentTimeMillis();
+        int sampled = 0;
+        for (BuildResult build : running) {
+            if (build.sampleProcessTree()) {
+                sampled++;
+            }
+        }
+        synchronized (this) {
+            samples++;
+            treesSampled += sampled;
+            lastSampleMillis = System.currentTimeMillis() - start;
+        }
+    }
+
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+            .put("intervalMillis", intervalMillis)
+            .put("samples", samples)
+            .put("treesSampled", treesSampled)
+            .put("lastSampleMillis", lastSampleMillis);
+    }
+}
@@ -0,0 +1,20 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * How queued builds of the same priority class are ordered.
+ */
+public enum QueuePolicy {
+
+    /**
+     * The repos with queued builds take turns, so that a repo with many queued builds cannot starve the others.
+     */
+    FAIR,
+
+    /**
+     * Builds expected to be quick, based on how long recent builds of the same git URL, branch and build parameter
+     * took, go first. A build's expected duration is reduced by the time it has waited, so a long build can only be
+     * overtaken by builds submitted less than its expected duration after it, and is never starved.
+     */
+    SHORTEST_EXPECTED_FIRST
+
+}
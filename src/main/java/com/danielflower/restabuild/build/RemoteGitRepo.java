@@ -1,27 +1,51 @@
 package com.danielflower.restabuild.build;
 
+import com.danielflower.restabuild.Config;
 import com.danielflower.restabuild.FileSandbox;
 import com.jcraft.jsch.JSch;
 import io.muserver.Mutils;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.file.DeleteOption;
 import org.apache.commons.io.file.PathUtils;
+import org.apache.commons.io.file.StandardDeleteOption;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.danielflower.restabuild.FileSandbox.dirPath;
 
@@ -30,98 +54,429 @@ public class RemoteGitRepo {
         JSch.setConfig("StrictHostKeyChecking", "no");
     }
     private static final Logger log = LoggerFactory.getLogger(RemoteGitRepo.class);
+    static final String LAST_USED_MARKER = "restabuild-last-used";
+    /**
+     * A file in the root of a repo that lists the directories that builds of it need, one per line, so that only
+     * those are checked out
+     */
+    public static final String SPARSE_CHECKOUT_FILE = ".restabuild-sparse";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int PRISTINE_CHECKOUTS_PER_REPO = 3;
+    private static final Map<String, Long> lastSuccessfulFetchStart = new ConcurrentHashMap<>();
+    private static final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
 
 
-    static synchronized RemoteGitRepo create(URIish gitUrl, FileSandbox fileSandbox) {
+    static synchronized RemoteGitRepo create(URIish gitUrl, FileSandbox fileSandbox, GitBackend gitBackend) {
         String repoId = DigestUtils.sha1Hex(gitUrl.toString());
         File gitDir = fileSandbox.repoDir(repoId);
-        File instanceDir = fileSandbox.tempDir(repoId + File.separator + "instances");
-        return new RemoteGitRepo(instanceDir, gitUrl, gitDir);
+        return new RemoteGitRepo(fileSandbox, repoId, gitUrl, gitDir, gitBackend);
     }
 
-    private Git getGit(ProgressMonitor progressMonitor) {
-        Git git;
-        try {
-            try {
-                git = Git.open(repoDir);
-                log.info("Using existing git repo at " + dirPath(repoDir));
-            } catch (RepositoryNotFoundException e) {
-                log.info("Cloning " + gitUrl + " to " + dirPath(repoDir));
-                git = Git.cloneRepository()
-                    .setProgressMonitor(progressMonitor)
-                    .setURI(gitUrl.toString())
-                    .setBare(true)
-                    .setDirectory(repoDir)
-                    .call();
-            }
-            git.remoteSetUrl().setRemoteName("origin").setRemoteUri(gitUrl).call();
-        } catch (IOException | GitAPIException e) {
-            throw new RestaBuildException("Could not open or create git repo at " + repoDir, e);
-        }
-        return git;
+    /**
+     * @return The location of the local bare repo for the given remote
+     */
+    static File localRepoDir(URIish gitUrl, FileSandbox fileSandbox) {
+        return fileSandbox.repoDir(DigestUtils.sha1Hex(gitUrl.toString()));
     }
 
 
-    private final File instanceDir;
+    private final FileSandbox fileSandbox;
+    private final String repoId;
     private final URIish gitUrl;
     private final File repoDir;
+    private final GitBackend gitBackend;
 
-    private RemoteGitRepo(File instanceDir, URIish gitUrl, File repoDir) {
-        this.instanceDir = instanceDir;
+    private RemoteGitRepo(FileSandbox fileSandbox, String repoId, URIish gitUrl, File repoDir, GitBackend gitBackend) {
+        this.fileSandbox = fileSandbox;
+        this.repoId = repoId;
         this.gitUrl = gitUrl;
         this.repoDir = repoDir;
+        this.gitBackend = gitBackend;
     }
 
 
-    public Git pullFromGitAndCopyWorkingCopyToNewDir(String branch, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
-        synchronized (repoDir.getCanonicalPath().intern()) {
-            try (Git git = getGit(progressMonitor)) {
-                git.fetch().setRemote("origin")
-                    .setProgressMonitor(progressMonitor).setTimeout((int) TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)).call();
+    /**
+     * Fetches the latest changes and then creates a new workspace with the given branch checked out.
+     * @param freshAfter The fetch is skipped if one that started at or after this time has completed
+     * @param sparsePaths The directories to check out, or empty to check out everything
+     */
+    public Git pullFromGitAndCopyWorkingCopyToNewDir(String branch, List<String> sparsePaths, WorkspaceMaterialization materialization, long freshAfter, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try {
+            fetch(freshAfter, timeoutMillis, progressMonitor);
+            Git copy = copyToNewInstanceDirAndSwitchBranch(branch, sparsePaths, materialization, timeoutMillis, progressMonitor);
+            markUsed();
+            return copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fetches the latest changes and then resets an existing workspace from a previous build of this repo to the
+     * head of the given branch, instead of cloning a new one.
+     * @param workspace A workspace previously returned by {@link #pullFromGitAndCopyWorkingCopyToNewDir(String, List, WorkspaceMaterialization, long, long, ProgressMonitor)}
+     * @param keepIgnoredFiles If true then ignored files, such as build output directories, are left in place
+     * @param freshAfter The fetch is skipped if one that started at or after this time has completed
+     * @return The workspace, or null if it could not be reset, in which case it should be discarded
+     */
+    public Git pullFromGitAndResetWorkspace(File workspace, String branch, boolean keepIgnoredFiles, long freshAfter, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try {
+            fetch(freshAfter, timeoutMillis, progressMonitor);
+            Git git = null;
+            try {
+                gitBackend.fetchFromBareRepo(workspace, repoDir, timeoutMillis, progressMonitor);
+                git = Git.open(workspace);
+                if (git.getRepository().exactRef(Constants.R_REMOTES + "origin/" + branch) == null) {
+                    git.close();
+                    return null;
+                }
+                gitBackend.checkoutRemoteBranch(workspace, branch);
+                gitBackend.clean(workspace, keepIgnoredFiles);
+            } catch (GitAPIException | IOException | RuntimeException e) {
+                if (git != null) {
+                    git.close();
+                }
+                log.info("Could not reset " + dirPath(workspace) + " so it will be discarded: " + e.getMessage());
+                return null;
             }
-            return copyToNewInstanceDirAndSwitchBranch(branch);
+            markUsed();
+            return git;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private Git copyToNewInstanceDirAndSwitchBranch(String branch) throws GitAPIException, IOException {
-        File dest = new File(instanceDir, String.valueOf(System.currentTimeMillis()));
-        if (!dest.mkdir()) {
-            throw new RuntimeException("Could not create " + dirPath(dest));
+    /**
+     * Fetches the latest changes and then creates a workspace with the given commit checked out, as is done for
+     * submodules.
+     * @param freshAfter The fetch is skipped if one that started at or after this time has completed, unless the
+     *                   commit is not in the local bare repo
+     * @return The workspace, or null if the commit does not exist in the remote repo
+     */
+    public Git pullFromGitAndCheckoutCommit(ObjectId commit, File dest, long freshAfter, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try {
+            fetch(freshAfter, timeoutMillis, progressMonitor);
+            if (!hasCommit(commit)) {
+                fetch(System.currentTimeMillis(), timeoutMillis, progressMonitor);
+                if (!hasCommit(commit)) {
+                    return null;
+                }
+            }
+            gitBackend.cloneCommitFromBareRepo(repoDir, gitUrl, commit, dest, timeoutMillis, progressMonitor);
+            markUsed();
+            return Git.open(dest);
+        } finally {
+            lock.unlock();
         }
-        // Clone from the bare repo on the local disk....
-        Git copy = Git.cloneRepository()
-            .setBranch(branch)
-            .setURI(repoDir.toURI().toString())
-            .setBare(false)
-            .setDirectory(dest)
-            .call();
+    }
 
-        // ...but set the origin to the remote URL the user selected so that if their build pushes anything to origin it goes to the right place
-        copy.remoteSetUrl().setRemoteName("origin").setRemoteUri(gitUrl).call();
-        return copy;
+    private boolean hasCommit(ObjectId commit) throws IOException {
+        try (Git git = Git.open(repoDir)) {
+            return git.getRepository().getObjectDatabase().has(commit);
+        }
     }
 
-    public static List<String> getTagsAt(Git git, ObjectId commitID) throws GitAPIException {
-        RefDatabase refDatabase = git.getRepository().getRefDatabase();
-        return git.tagList().call()
-            .stream()
-            .map(tag -> {
+    /**
+     * Checks out the submodules of a workspace of this repo at the commits recorded in it, and then their submodules.
+     * <p>Each submodule URL has its own local bare repo that is fetched in the same way as the repos being built, so
+     * a submodule used by many repos or builds is only downloaded once, and fetches of it are shared. Submodules that
+     * cannot be checked out are reported in the build log and skipped, so builds that do not need them still run.</p>
+     */
+    public void checkoutSubmodules(Git workspace, long freshAfter, long timeoutMillis, ProgressMonitor progressMonitor, Writer buildLog) throws IOException {
+        Repository repo = workspace.getRepository();
+        if (!SubmoduleWalk.containsGitModulesFile(repo)) {
+            return;
+        }
+        try (SubmoduleWalk walk = SubmoduleWalk.forIndex(repo)) {
+            while (walk.next()) {
+                String path = walk.getPath();
+                File dest = new File(repo.getWorkTree(), path);
+                if (!dest.isDirectory()) {
+                    // not part of a sparse checkout
+                    continue;
+                }
                 try {
-                    return refDatabase.peel(tag);
-                } catch (IOException e) {
-                    return null;
+                    String name = walk.getModuleName();
+                    String url = walk.getModulesUrl();
+                    if (url == null) {
+                        buildLog.write("Skipping submodule " + path + " as it has no URL in .gitmodules\n");
+                        continue;
+                    }
+                    URIish submoduleUrl = new URIish(SubmoduleWalk.getSubmoduleRemoteUrl(repo, url));
+                    ObjectId commit = walk.getObjectId();
+                    buildLog.write("Checking out submodule " + path + " at " + commit.name() + " from " + submoduleUrl + "\n");
+                    PathUtils.cleanDirectory(dest.toPath(), StandardDeleteOption.OVERRIDE_READ_ONLY);
+                    RemoteGitRepo submodule = create(submoduleUrl, fileSandbox, gitBackend);
+                    try (Git submoduleGit = submodule.pullFromGitAndCheckoutCommit(commit, dest, freshAfter, timeoutMillis, progressMonitor)) {
+                        if (submoduleGit == null) {
+                            buildLog.write("Skipping submodule " + path + " as " + commit.name() + " was not found in " + submoduleUrl + "\n");
+                            continue;
+                        }
+                        // the same config that "git submodule init" writes
+                        StoredConfig config = repo.getConfig();
+                        config.setString(ConfigConstants.CONFIG_SUBMODULE_SECTION, name, ConfigConstants.CONFIG_KEY_URL, submoduleUrl.toString());
+                        config.setBoolean(ConfigConstants.CONFIG_SUBMODULE_SECTION, name, "active", true);
+                        config.save();
+                        submodule.checkoutSubmodules(submoduleGit, freshAfter, timeoutMillis, progressMonitor, buildLog);
+                    }
+                } catch (GitAPIException | URISyntaxException | ConfigInvalidException | IOException | RestaBuildException e) {
+                    if (e instanceof InterruptedIOException) {
+                        throw (InterruptedIOException) e;
+                    }
+                    buildLog.write("Could not check out submodule " + path + ": " + e.getMessage() + "\n");
                 }
-            })
-            .filter(tag -> tag != null && Mutils.coalesce(tag.getPeeledObjectId(), tag.getObjectId()).equals(commitID))
-            .map(tag -> {
-                String name = tag.getName();
-                int lastSlash = name.lastIndexOf('/');
-                if (lastSlash > -1) {
-                    name = name.substring(lastSlash + 1);
+            }
+        }
+    }
+
+    /**
+     * Fetches from the remote into the local bare repo, unless a fetch that started at or after <code>freshAfter</code>
+     * has already completed, in which case the changes wanted by the caller are already there.
+     * @return true if a fetch was performed; false if it was skipped
+     */
+    public boolean fetch(long freshAfter, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        String key = dirPath(repoDir);
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try {
+            Long lastFetchStart = lastSuccessfulFetchStart.get(key);
+            if (lastFetchStart != null && lastFetchStart >= freshAfter) {
+                log.info("Skipping fetch of " + gitUrl + " as it was fetched " + (System.currentTimeMillis() - lastFetchStart) + "ms ago");
+                return false;
+            }
+            long fetchStart = System.currentTimeMillis();
+            gitBackend.fetchIntoBareRepo(repoDir, gitUrl, timeoutMillis, progressMonitor);
+            lastSuccessfulFetchStart.put(key, fetchStart);
+            markUsed();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    File repoDir() {
+        return repoDir;
+    }
+
+    /**
+     * @return true if the given workspace only has some of its files checked out
+     */
+    static boolean isSparse(File workspace) {
+        return new File(workspace, Constants.DOT_GIT + File.separator + "info" + File.separator + "sparse-checkout").isFile();
+    }
+
+    /**
+     * @return the commit that the branch is at in the local bare repo, or null if the branch does not exist
+     */
+    public ObjectId headOf(String branch) throws IOException {
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try (Git git = Git.open(repoDir)) {
+            return git.getRepository().resolve(Constants.R_HEADS + branch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the directories listed in the {@link #SPARSE_CHECKOUT_FILE} at the head of the branch in the local bare
+     * repo, which should be fetched first.
+     * @return The directories, or an empty list if the branch or file does not exist
+     * @throws RestaBuildException if the file lists a path outside the repo
+     */
+    public List<String> sparsePathsFromRepo(String branch) throws IOException {
+        ReentrantLock lock = lockFor(repoDir);
+        lock.lock();
+        try (Git git = Git.open(repoDir)) {
+            Repository repo = git.getRepository();
+            ObjectId commit = repo.resolve(Constants.R_HEADS + branch);
+            if (commit == null) {
+                return Collections.emptyList();
+            }
+            try (RevWalk revWalk = new RevWalk(repo);
+                 TreeWalk treeWalk = TreeWalk.forPath(repo, SPARSE_CHECKOUT_FILE, revWalk.parseCommit(commit).getTree())) {
+                if (treeWalk == null) {
+                    return Collections.emptyList();
                 }
-                return name;
-            })
-            .collect(Collectors.toList());
+                String text = new String(repo.open(treeWalk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+                return RepoBranch.parseSparsePaths(text);
+            } catch (IllegalArgumentException e) {
+                throw new RestaBuildException("Invalid " + SPARSE_CHECKOUT_FILE + " file: " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the time the repo was last used in the modification time of a marker file, so that the least recently
+     * used repos can be found even after a restart. The directory's own modification time is not used as git changes
+     * it during maintenance too.
+     */
+    private void markUsed() {
+        try {
+            FileUtils.touch(new File(repoDir, LAST_USED_MARKER));
+        } catch (IOException e) {
+            log.debug("Could not mark " + dirPath(repoDir) + " as used", e);
+        }
+    }
+
+    /**
+     * @return The time that the repo at the given location was last fetched or cloned from
+     */
+    static long lastUsed(File repoDir) {
+        File marker = new File(repoDir, LAST_USED_MARKER);
+        return marker.isFile() ? marker.lastModified() : repoDir.lastModified();
+    }
+
+    /**
+     * Deletes the local bare repo at the given location along with its pristine checkouts. The caller must hold the
+     * lock for the repo.
+     */
+    static void evict(File repoDir, File pristineDir) throws IOException {
+        lastSuccessfulFetchStart.remove(dirPath(repoDir));
+        PathUtils.deleteDirectory(repoDir.toPath(), StandardDeleteOption.OVERRIDE_READ_ONLY);
+        if (pristineDir.isDirectory()) {
+            PathUtils.deleteDirectory(pristineDir.toPath(), StandardDeleteOption.OVERRIDE_READ_ONLY);
+        }
+    }
+
+    /**
+     * @return The lock that must be held while reading from or writing to the bare repo at the given location
+     */
+    static ReentrantLock lockFor(File repoDir) {
+        return locks.computeIfAbsent(dirPath(repoDir), k -> new ReentrantLock());
+    }
+
+    private Git copyToNewInstanceDirAndSwitchBranch(String branch, List<String> sparsePaths, WorkspaceMaterialization materialization, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        File instanceDir = fileSandbox.tempDir(repoId + File.separator + "instances");
+        File dest = Files.createTempDirectory(instanceDir.toPath(), "").toFile();
+        // pristine checkouts are complete, so sparse workspaces are always cloned
+        if (materialization == WorkspaceMaterialization.COPY_ON_WRITE && sparsePaths.isEmpty()) {
+            Git copy = copyFromPristineCheckout(branch, dest, timeoutMillis);
+            if (copy != null) {
+                return copy;
+            }
+        }
+        gitBackend.cloneFromBareRepo(repoDir, gitUrl, branch, sparsePaths, dest, timeoutMillis, progressMonitor);
+        return Git.open(dest);
+    }
+
+    /**
+     * Copies the working tree and git dir of a pristine checkout of the branch's head commit into the given empty
+     * directory, creating the pristine checkout first if this commit has not been built recently.
+     * <p>The copy's refs are then brought up to date from the local bare repo so that it is the same as a fresh clone.
+     * Hardlinking the files is not an option as builds may modify tracked files in place, which would change the
+     * pristine checkout too.</p>
+     * @return The copied workspace, or null if the branch does not exist
+     */
+    private Git copyFromPristineCheckout(String branch, File dest, long timeoutMillis) throws GitAPIException, IOException {
+        ObjectId commit;
+        try (Git bare = Git.open(repoDir)) {
+            commit = bare.getRepository().resolve(Constants.R_HEADS + branch);
+        }
+        if (commit == null) {
+            return null;
+        }
+        File pristineRoot = fileSandbox.pristineDir(repoId);
+        File pristine = new File(pristineRoot, commit.name());
+        if (!pristine.isDirectory()) {
+            File partial = new File(pristineRoot, commit.name() + PARTIAL_SUFFIX);
+            if (partial.exists()) {
+                PathUtils.deleteDirectory(partial.toPath(), StandardDeleteOption.OVERRIDE_READ_ONLY);
+            }
+            long start = System.currentTimeMillis();
+            if (!partial.mkdirs()) {
+                throw new IOException("Could not create " + dirPath(partial));
+            }
+            gitBackend.cloneFromBareRepo(repoDir, gitUrl, branch, Collections.emptyList(), partial, timeoutMillis, NullProgressMonitor.INSTANCE);
+            Files.move(partial.toPath(), pristine.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            log.info("Created pristine checkout of " + gitUrl + " at " + commit.name() + " in " + (System.currentTimeMillis() - start) + "ms");
+            deleteOldPristineCheckouts(pristineRoot);
+        }
+        if (!pristine.setLastModified(System.currentTimeMillis())) {
+            log.debug("Could not update the modification time of " + dirPath(pristine));
+        }
+
+        long start = System.currentTimeMillis();
+        copyTree(pristine, dest);
+        log.info("Copied pristine checkout of " + gitUrl + " to " + dirPath(dest) + " in " + (System.currentTimeMillis() - start) + "ms");
+        gitBackend.fetchFromBareRepo(dest, repoDir, timeoutMillis, NullProgressMonitor.INSTANCE);
+        Git copy = Git.open(dest);
+        if (!branch.equals(copy.getRepository().getBranch())) {
+            // the pristine checkout is shared by all branches at the same commit, so this only moves HEAD
+            gitBackend.checkoutRemoteBranch(dest, branch);
+        }
+        return copy;
+    }
+
+    private static void deleteOldPristineCheckouts(File pristineRoot) {
+        File[] checkouts = pristineRoot.listFiles(f -> f.isDirectory() && !f.getName().endsWith(PARTIAL_SUFFIX));
+        if (checkouts == null || checkouts.length <= PRISTINE_CHECKOUTS_PER_REPO) {
+            return;
+        }
+        Arrays.sort(checkouts, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = PRISTINE_CHECKOUTS_PER_REPO; i < checkouts.length; i++) {
+            log.info("Deleting old pristine checkout " + dirPath(checkouts[i]));
+            deleteDirectoryQuietly(checkouts[i], StandardDeleteOption.OVERRIDE_READ_ONLY);
+        }
+    }
+
+    /**
+     * Copies the contents of one directory into another, preserving file attributes. The <code>cp</code> command is
+     * used where available as it can make copy-on-write reflinks on filesystems that support them, which takes the
+     * same time no matter how large the files are.
+     */
+    static void copyTree(File source, File dest) throws IOException {
+        if (!Config.isWindows()) {
+            try {
+                Process process = new ProcessBuilder("cp", "-a", "--reflink=auto", dirPath(source) + File.separator + ".", dirPath(dest))
+                    .redirectErrorStream(true)
+                    .start();
+                String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+                if (process.waitFor() == 0) {
+                    return;
+                }
+                log.info("Could not copy " + dirPath(source) + " with cp so falling back to a plain copy: " + output.trim());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while copying " + dirPath(source), e);
+            } catch (IOException e) {
+                log.info("Could not run cp so falling back to a plain copy: " + e.getMessage());
+            }
+            PathUtils.cleanDirectory(dest.toPath(), StandardDeleteOption.OVERRIDE_READ_ONLY);
+        }
+        PathUtils.copyDirectory(source.toPath(), dest.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    /**
+     * Peels every tag in the repo once and indexes the tag names by the commit they point to, so that the tags of
+     * many commits can be looked up without listing all the tags for each one.
+     */
+    public static Map<ObjectId, List<String>> tagsByCommit(Git git) throws IOException {
+        RefDatabase refDatabase = git.getRepository().getRefDatabase();
+        Map<ObjectId, List<String>> index = new HashMap<>();
+        for (Ref tag : refDatabase.getRefsByPrefix(Constants.R_TAGS)) {
+            Ref peeled;
+            try {
+                peeled = refDatabase.peel(tag);
+            } catch (IOException e) {
+                continue;
+            }
+            String name = peeled.getName();
+            int lastSlash = name.lastIndexOf('/');
+            if (lastSlash > -1) {
+                name = name.substring(lastSlash + 1);
+            }
+            index.computeIfAbsent(Mutils.coalesce(peeled.getPeeledObjectId(), peeled.getObjectId()), k -> new ArrayList<>()).add(name);
+        }
+        return index;
     }
 
     public static void deleteDirectoryQuietly(File workDir, DeleteOption... options) {
@@ -2,12 +2,62 @@ package com.danielflower.restabuild.build;
 
 import org.eclipse.jgit.transport.URIish;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class RepoBranch {
     public final URIish url;
     public final String branch;
+    /**
+     * The directories to check out, or empty to use the paths listed in the repo's {@link RemoteGitRepo#SPARSE_CHECKOUT_FILE}
+     * or check out everything if there is no such file. Files in the root of the repo are always checked out.
+     */
+    public final List<String> sparsePaths;
+    /**
+     * The time that a fetch must have started at or after for its changes to be used by the build, or -1 to fetch
+     * when the build's workspace is created. Builds submitted together share a time so that only one of them fetches.
+     */
+    public final long freshAfter;
 
     public RepoBranch(URIish url, String branch) {
+        this(url, branch, Collections.emptyList());
+    }
+
+    public RepoBranch(URIish url, String branch, List<String> sparsePaths) {
+        this(url, branch, sparsePaths, -1);
+    }
+
+    public RepoBranch(URIish url, String branch, List<String> sparsePaths, long freshAfter) {
         this.url = url;
         this.branch = branch;
+        this.sparsePaths = sparsePaths;
+        this.freshAfter = freshAfter;
+    }
+
+    /**
+     * Parses a list of directories separated by commas or new lines, ignoring blank lines and lines starting with <code>#</code>
+     * @throws IllegalArgumentException if a path goes outside the repo
+     */
+    public static List<String> parseSparsePaths(String text) {
+        List<String> paths = new ArrayList<>();
+        if (text == null) {
+            return paths;
+        }
+        for (String line : text.split("[,\\r\\n]")) {
+            String path = line.trim().replace('\\', '/');
+            if (path.isEmpty() || path.startsWith("#")) {
+                continue;
+            }
+            // paths are relative to the root of the repo, so leading slashes are optional
+            path = path.replaceAll("^/+|/+$", "");
+            if (path.matches("^[A-Za-z]:.*") || ("/" + path + "/").contains("/../")) {
+                throw new IllegalArgumentException("The sparse checkout path " + line.trim() + " must be a directory inside the repo");
+            }
+            if (!path.isEmpty() && !paths.contains(path)) {
+                paths.add(path);
+            }
+        }
+        return paths;
     }
 }
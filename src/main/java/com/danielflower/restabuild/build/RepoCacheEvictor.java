@@ -0,0 +1,155 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.URIish;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static com.danielflower.restabuild.FileSandbox.dirPath;
+
+/**
+ * Keeps the total size of the local bare repos, and the pristine checkouts made from them, under a budget by deleting the least recently used ones.
+ * <p>Repos used by queued or running builds, and repos that are currently locked, are never deleted. A deleted repo
+ * is simply cloned again the next time it is built.</p>
+ */
+public class RepoCacheEvictor {
+    private static final Logger log = LoggerFactory.getLogger(RepoCacheEvictor.class);
+
+    private final FileSandbox sandbox;
+    private final long maxBytes;
+    private final Supplier<Set<URIish>> gitUrlsInUse;
+    private final Map<String, CachedRepo> measured = new HashMap<>();
+    private volatile long totalBytes;
+    private volatile int repoCount;
+    private volatile long evictions;
+    private volatile long evictedBytes;
+
+    /**
+     * @param maxBytes The total size that the local repos are allowed to use
+     * @param gitUrlsInUse Provides the URLs of repos that must not be deleted
+     */
+    public RepoCacheEvictor(FileSandbox sandbox, long maxBytes, Supplier<Set<URIish>> gitUrlsInUse) {
+        this.sandbox = sandbox;
+        this.maxBytes = maxBytes;
+        this.gitUrlsInUse = gitUrlsInUse;
+    }
+
+    public void start(ScheduledExecutorService executor, long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                evict();
+            } catch (Exception e) {
+                log.error("Error while evicting repos", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes least recently used repos until the total size is within the budget.
+     * @return The directories of the repos that were deleted
+     */
+    synchronized List<File> evict() {
+        List<CachedRepo> repos = measure();
+        List<File> evicted = new ArrayList<>();
+        if (totalBytes <= maxBytes) {
+            return evicted;
+        }
+        Set<String> inUse = new HashSet<>();
+        for (URIish gitUrl : gitUrlsInUse.get()) {
+            inUse.add(dirPath(RemoteGitRepo.localRepoDir(gitUrl, sandbox)));
+        }
+        repos.sort(Comparator.comparingLong(r -> r.lastUsed));
+        for (CachedRepo repo : repos) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            String path = dirPath(repo.dir);
+            if (inUse.contains(path)) {
+                continue;
+            }
+            ReentrantLock lock = RemoteGitRepo.lockFor(repo.dir);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                RemoteGitRepo.evict(repo.dir, sandbox.pristineDirFor(repo.dir));
+                measured.remove(path);
+                repoCount--;
+                totalBytes -= repo.bytes;
+                evictions++;
+                evictedBytes += repo.bytes;
+                evicted.add(repo.dir);
+                log.info("Evicted " + path + " (" + repo.bytes + " bytes, last used " + new Date(repo.lastUsed) + ") from the repo cache; cache size is now " + totalBytes + " bytes");
+            } catch (Exception e) {
+                log.warn("Could not evict " + path, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (totalBytes > maxBytes) {
+            log.warn("The repo cache is " + totalBytes + " bytes, which is over the limit of " + maxBytes + " bytes, but the remaining repos are in use");
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets the size of each repo, including its pristine checkouts, only re-measuring those that have been used or changed since they were last measured.
+     */
+    private List<CachedRepo> measure() {
+        File[] dirs = sandbox.reposDir().listFiles(File::isDirectory);
+        List<CachedRepo> repos = new ArrayList<>();
+        Map<String, CachedRepo> current = new HashMap<>();
+        long total = 0;
+        for (File dir : dirs == null ? new File[0] : dirs) {
+            String path = dirPath(dir);
+            long lastUsed = RemoteGitRepo.lastUsed(dir);
+            File pristine = sandbox.pristineDirFor(dir);
+            long lastModified = Math.max(dir.lastModified(), pristine.lastModified());
+            CachedRepo repo = measured.get(path);
+            if (repo == null || repo.lastUsed != lastUsed || repo.lastModified != lastModified) {
+                long bytes = FileUtils.sizeOfDirectory(dir) + (pristine.isDirectory() ? FileUtils.sizeOfDirectory(pristine) : 0);
+                repo = new CachedRepo(dir, lastUsed, lastModified, bytes);
+            }
+            current.put(path, repo);
+            repos.add(repo);
+            total += repo.bytes;
+        }
+        measured.clear();
+        measured.putAll(current);
+        totalBytes = total;
+        repoCount = repos.size();
+        return repos;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+            .put("maxBytes", maxBytes)
+            .put("totalBytes", totalBytes)
+            .put("repos", repoCount)
+            .put("evictions", evictions)
+            .put("evictedBytes", evictedBytes);
+    }
+
+    private static class CachedRepo {
+        private final File dir;
+        private final long lastUsed;
+        private final long lastModified;
+        private final long bytes;
+
+        private CachedRepo(File dir, long lastUsed, long lastModified, long bytes) {
+            this.dir = dir;
+            this.lastUsed = lastUsed;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+        }
+    }
+}
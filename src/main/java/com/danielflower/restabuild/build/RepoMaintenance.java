@@ -0,0 +1,132 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.danielflower.restabuild.FileSandbox.dirPath;
+
+/**
+ * Garbage collects and repacks the local bare repos once they have too many pack files or loose objects, which
+ * otherwise build up with every fetch and slow down fetching and cloning.
+ * <p>Repos that are being fetched or cloned from are skipped and tried again next time.</p>
+ */
+public class RepoMaintenance {
+    private static final Logger log = LoggerFactory.getLogger(RepoMaintenance.class);
+
+    private final FileSandbox sandbox;
+    private final long maxPackFiles;
+    private final long maxLooseObjects;
+    private final Map<String, JSONObject> lastResults = new ConcurrentHashMap<>();
+    private final AtomicLong collections = new AtomicLong();
+    private final AtomicLong skippedAsBusy = new AtomicLong();
+    private final AtomicLong totalDurationMillis = new AtomicLong();
+
+    /**
+     * @param maxPackFiles A repo with at least this many pack files is repacked
+     * @param maxLooseObjects A repo with at least this many loose objects is repacked
+     */
+    public RepoMaintenance(FileSandbox sandbox, long maxPackFiles, long maxLooseObjects) {
+        this.sandbox = sandbox;
+        this.maxPackFiles = maxPackFiles;
+        this.maxLooseObjects = maxLooseObjects;
+    }
+
+    public void start(ScheduledExecutorService executor, long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                maintainAll();
+            } catch (Exception e) {
+                log.error("Error while running repo maintenance", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void maintainAll() {
+        File[] repoDirs = sandbox.reposDir().listFiles(File::isDirectory);
+        if (repoDirs != null) {
+            for (File repoDir : repoDirs) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                try {
+                    maintain(repoDir);
+                } catch (Exception e) {
+                    log.warn("Error while maintaining " + dirPath(repoDir), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Repacks the given repo if it is over either threshold and not in use.
+     * @return A description of the statistics before and after, or null if nothing was done
+     */
+    JSONObject maintain(File repoDir) throws IOException, GitAPIException {
+        ReentrantLock lock = RemoteGitRepo.lockFor(repoDir);
+        if (!lock.tryLock()) {
+            skippedAsBusy.incrementAndGet();
+            log.info("Skipping maintenance of " + dirPath(repoDir) + " as it is in use");
+            return null;
+        }
+        try (Git git = Git.open(repoDir)) {
+            Properties before = git.gc().getStatistics();
+            if (stat(before, "numberOfPackFiles") < maxPackFiles && stat(before, "numberOfLooseObjects") < maxLooseObjects) {
+                return null;
+            }
+            long start = System.currentTimeMillis();
+            Properties after = git.gc().call();
+            long duration = System.currentTimeMillis() - start;
+
+            JSONObject result = new JSONObject()
+                .put("gitUrl", git.getRepository().getConfig().getString("remote", "origin", "url"))
+                .put("completedAt", Instant.now().toString())
+                .put("durationMillis", duration)
+                .put("before", toJson(before))
+                .put("after", toJson(after));
+            lastResults.put(repoDir.getName(), result);
+            collections.incrementAndGet();
+            totalDurationMillis.addAndGet(duration);
+            log.info("Repacked " + dirPath(repoDir) + " in " + duration + "ms: " + result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long stat(Properties stats, String name) {
+        Object value = stats.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static JSONObject toJson(Properties stats) {
+        return new JSONObject()
+            .put("packFiles", stat(stats, "numberOfPackFiles"))
+            .put("packedObjects", stat(stats, "numberOfPackedObjects"))
+            .put("packedBytes", stat(stats, "sizeOfPackedObjects"))
+            .put("looseObjects", stat(stats, "numberOfLooseObjects"))
+            .put("looseBytes", stat(stats, "sizeOfLooseObjects"));
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+            .put("collections", collections.get())
+            .put("skippedAsBusy", skippedAsBusy.get())
+            .put("totalDurationMillis", totalDurationMillis.get())
+            .put("lastResults", new JSONObject(lastResults));
+    }
+}
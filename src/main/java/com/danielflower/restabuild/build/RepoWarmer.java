@@ -0,0 +1,119 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Periodically fetches the most frequently built repos into their local bare repos so that the fetch done at the
+ * start of a build only has to download the last few changes.
+ * <p>Each repo has a score that goes up by one per build and halves every interval, so the repos kept warm are
+ * the ones that have been busy recently.</p>
+ */
+public class RepoWarmer {
+    private static final Logger log = LoggerFactory.getLogger(RepoWarmer.class);
+    private static final double MIN_SCORE = 0.1;
+
+    private final FileSandbox sandbox;
+    private final ExecutorService fetchExecutor;
+    private final int numberOfRepos;
+    private final long intervalMillis;
+    private final long jitterMillis;
+    private final long fetchTimeoutMillis;
+    private final GitBackend gitBackend;
+    private final Map<String, RepoScore> scores = new HashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+
+    /**
+     * @param fetchExecutor The executor that fetches are run on, which caps the number of concurrent fetches
+     * @param numberOfRepos The number of the hottest repos to fetch each interval
+     * @param intervalMillis How often to fetch the hot repos
+     * @param jitterMillis The maximum random delay added to each fetch so that they do not all hit the git servers at once
+     * @param fetchTimeoutMillis The network timeout for each fetch
+     */
+    public RepoWarmer(FileSandbox sandbox, ExecutorService fetchExecutor, int numberOfRepos, long intervalMillis, long jitterMillis, long fetchTimeoutMillis, GitBackend gitBackend) {
+        this.sandbox = sandbox;
+        this.fetchExecutor = fetchExecutor;
+        this.numberOfRepos = numberOfRepos;
+        this.intervalMillis = intervalMillis;
+        this.jitterMillis = jitterMillis;
+        this.fetchTimeoutMillis = fetchTimeoutMillis;
+        this.gitBackend = gitBackend;
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                warm(scheduler);
+            } catch (Exception e) {
+                log.error("Error while warming repos", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onBuildQueued(URIish gitUrl) {
+        synchronized (scores) {
+            scores.computeIfAbsent(gitUrl.toString(), k -> new RepoScore(gitUrl)).score += 1;
+        }
+    }
+
+    List<URIish> hottest() {
+        synchronized (scores) {
+            return scores.values().stream()
+                .sorted(Comparator.comparingDouble((RepoScore rs) -> rs.score).reversed())
+                .limit(numberOfRepos)
+                .map(rs -> rs.gitUrl)
+                .collect(Collectors.toList());
+        }
+    }
+
+    private void warm(ScheduledExecutorService scheduler) {
+        List<URIish> hottest = hottest();
+        synchronized (scores) {
+            scores.values().removeIf(rs -> (rs.score /= 2) < MIN_SCORE);
+        }
+        for (URIish gitUrl : hottest) {
+            synchronized (inFlight) {
+                if (!inFlight.add(gitUrl.toString())) {
+                    continue;
+                }
+            }
+            long delay = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0;
+            scheduler.schedule(() -> fetchExecutor.execute(() -> fetch(gitUrl)), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fetch(URIish gitUrl) {
+        try {
+            long start = System.currentTimeMillis();
+            boolean fetched = RemoteGitRepo.create(gitUrl, sandbox, gitBackend).fetch(start, fetchTimeoutMillis, NullProgressMonitor.INSTANCE);
+            if (fetched) {
+                log.info("Warmed " + gitUrl + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (Exception e) {
+            log.warn("Error while warming " + gitUrl + ": " + e.getMessage());
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(gitUrl.toString());
+            }
+        }
+    }
+
+    private static class RepoScore {
+        private final URIish gitUrl;
+        private double score;
+
+        private RepoScore(URIish gitUrl) {
+            this.gitUrl = gitUrl;
+        }
+    }
+}
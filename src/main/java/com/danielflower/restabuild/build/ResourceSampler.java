@@ -0,0 +1,213 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the resources used by each running build at a fixed interval, by reading the stats of its processes from
+ * /proc, so that machines can be sized and builds that use a lot of memory can be found.
+ * <p>The stats of every process are read once per sample to find which processes belong to which build. The CPU time
+ * and storage bytes of a process include those of its children that have exited, so the totals for a build keep
+ * growing as its processes come and go.</p>
+ */
+public class ResourceSampler {
+    private static final Logger log = LoggerFactory.getLogger(ResourceSampler.class);
+
+    /**
+     * The kernel reports CPU time in clock ticks, which is 100 per second on all common Linux platforms
+     */
+    private static final int CLOCK_TICKS_PER_SECOND = 100;
+
+    private final File procDir;
+    private final long intervalMillis;
+    private final int maxSamples;
+    private long samples;
+    private long lastSampleMillis = -1;
+
+    /**
+     * @param procDir The proc file system, which is normally <code>/proc</code>
+     * @param maxSamples The most samples to keep for each build
+     */
+    public ResourceSampler(File procDir, long intervalMillis, int maxSamples) {
+        this.procDir = procDir;
+        this.intervalMillis = intervalMillis;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * @return false if there is no proc file system to sample, in which case nothing is recorded
+     */
+    public boolean start(ScheduledExecutorService scheduler, BuildQueue buildQueue) {
+        if (!new File(procDir, "self/stat").isFile()) {
+            log.info("Build resource usage will not be recorded as " + procDir + " is not available");
+            return false;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sample(buildQueue.runningBuilds(), System.currentTimeMillis());
+            } catch (Exception e) {
+                log.error("Error while sampling build resource usage", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    void sample(Collection<BuildResult> running, long now) {
+        Map<Long, ProcessStat> stats = null;
+        Map<Long, List<Long>> children = null;
+        for (BuildResult build : running) {
+            long pid = build.pid();
+            if (pid < 0) {
+                continue;
+            }
+            if (stats == null) {
+                stats = readStats(procDir);
+                children = childrenByParent(stats);
+            }
+            Usage usage = usage(pid, stats, children, procDir);
+            ResourceSeries series = usage == null ? null : build.resources(intervalMillis, maxSamples);
+            if (series != null) {
+                series.add(now, usage.cpuMillis, usage.rssBytes, usage.readBytes, usage.writeBytes, usage.threads);
+            }
+        }
+        synchronized (this) {
+            samples++;
+            lastSampleMillis = System.currentTimeMillis() - now;
+        }
+    }
+
+    /**
+     * @return The stats of every process, by process ID
+     */
+    static Map<Long, ProcessStat> readStats(File procDir) {
+        Map<Long, ProcessStat> stats = new HashMap<>();
+        File[] dirs = procDir.listFiles((dir, name) -> !name.isEmpty() && name.chars().allMatch(Character::isDigit));
+        if (dirs != null) {
+            for (File dir : dirs) {
+                ProcessStat stat = ProcessStat.read(new File(dir, "stat"));
+                if (stat != null) {
+                    stats.put(stat.pid, stat);
+                }
+            }
+        }
+        return stats;
+    }
+
+    static Map<Long, List<Long>> childrenByParent(Map<Long, ProcessStat> stats) {
+        Map<Long, List<Long>> children = new HashMap<>();
+        for (ProcessStat stat : stats.values()) {
+            children.computeIfAbsent(stat.ppid, k -> new ArrayList<>()).add(stat.pid);
+        }
+        return children;
+    }
+
+    /**
+     * @return The total usage of the process and all its descendants, or null if the process no longer exists
+     */
+    static Usage usage(long rootPid, Map<Long, ProcessStat> stats, Map<Long, List<Long>> children, File procDir) {
+        if (!stats.containsKey(rootPid)) {
+            return null;
+        }
+        Usage usage = new Usage();
+        Deque<Long> toVisit = new ArrayDeque<>();
+        toVisit.add(rootPid);
+        while (!toVisit.isEmpty()) {
+            long pid = toVisit.pop();
+            ProcessStat stat = stats.get(pid);
+            File dir = new File(procDir, String.valueOf(pid));
+            usage.cpuMillis += stat.cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+            usage.threads += stat.threads;
+            usage.rssBytes += 1024 * readField(new File(dir, "status"), "VmRSS:");
+            File io = new File(dir, "io");
+            usage.readBytes += readField(io, "read_bytes:");
+            usage.writeBytes += readField(io, "write_bytes:");
+            toVisit.addAll(children.getOrDefault(pid, List.of()));
+        }
+        return usage;
+    }
+
+    /**
+     * @return The number at the start of the value of a line such as <code>VmRSS:   1024 kB</code>, or 0 if the file
+     * or line cannot be read, such as when the process has exited
+     */
+    private static long readField(File file, String name) {
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(name)) {
+                    String value = line.substring(name.length()).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space < 0 ? value : value.substring(0, space));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // the process exited, or its stats are not readable by this user
+        }
+        return 0;
+    }
+
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+            .put("intervalMillis", intervalMillis)
+            .put("maxSamples", maxSamples)
+            .put("samples", samples)
+            .put("lastSampleMillis", lastSampleMillis);
+    }
+
+    static class ProcessStat {
+        final long pid;
+        final long ppid;
+        final long cpuTicks;
+        final int threads;
+
+        private ProcessStat(long pid, long ppid, long cpuTicks, int threads) {
+            this.pid = pid;
+            this.ppid = ppid;
+            this.cpuTicks = cpuTicks;
+            this.threads = threads;
+        }
+
+        /**
+         * Reads a <code>/proc/[pid]/stat</code> file, whose second field is the command name in brackets, which can
+         * contain spaces and brackets itself.
+         * @return The stats, or null if the process has exited or the file could not be parsed
+         */
+        static ProcessStat read(File statFile) {
+            try {
+                String content = new String(Files.readAllBytes(statFile.toPath()), StandardCharsets.US_ASCII);
+                int endOfName = content.lastIndexOf(')');
+                long pid = Long.parseLong(content.substring(0, content.indexOf(' ')));
+                String[] fields = content.substring(endOfName + 2).trim().split(" ");
+                // fields start at the state, which is field 3 in the proc man page
+                long ppid = Long.parseLong(fields[1]);
+                long cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]) + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+                int threads = Integer.parseInt(fields[17]);
+                return new ProcessStat(pid, ppid, cpuTicks, threads);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    static class Usage {
+        long cpuMillis;
+        long rssBytes;
+        long readBytes;
+        long writeBytes;
+        int threads;
+    }
+}
@@ -0,0 +1,151 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The resources used by the processes of a build over time: CPU time, resident memory, bytes read from and written
+ * to storage, and threads.
+ * <p>Samples are held in parallel primitive arrays used as a ring buffer, so a long build keeps its most recent
+ * samples in a fixed amount of memory. Peaks and averages are updated as samples are added, so they cover the whole
+ * build even after older samples have been overwritten.</p>
+ */
+class ResourceSeries {
+
+    private final long intervalMillis;
+    private final long[] times;
+    private final long[] cpuMillis;
+    private final long[] rssBytes;
+    private final long[] readBytes;
+    private final long[] writeBytes;
+    private final int[] threads;
+    private int next;
+    private int size;
+
+    private long samples;
+    private long firstTime;
+    private long firstCpuMillis;
+    private long lastTime;
+    private long lastCpuMillis;
+    private long lastReadBytes;
+    private long lastWriteBytes;
+    private double peakCpuCores;
+    private long peakRssBytes;
+    private long totalRssBytes;
+    private int peakThreads;
+
+    /**
+     * @param intervalMillis How often samples are taken
+     * @param capacity The most samples to keep
+     */
+    ResourceSeries(long intervalMillis, int capacity) {
+        this.intervalMillis = intervalMillis;
+        capacity = Math.max(1, capacity);
+        this.times = new long[capacity];
+        this.cpuMillis = new long[capacity];
+        this.rssBytes = new long[capacity];
+        this.readBytes = new long[capacity];
+        this.writeBytes = new long[capacity];
+        this.threads = new int[capacity];
+    }
+
+    /**
+     * @param cpuMillis The CPU time used by the build so far
+     * @param readBytes The bytes read from storage by the build so far
+     * @param writeBytes The bytes written to storage by the build so far
+     */
+    synchronized void add(long time, long cpuMillis, long rssBytes, long readBytes, long writeBytes, int threads) {
+        this.times[next] = time;
+        this.cpuMillis[next] = cpuMillis;
+        this.rssBytes[next] = rssBytes;
+        this.readBytes[next] = readBytes;
+        this.writeBytes[next] = writeBytes;
+        this.threads[next] = threads;
+        next = (next + 1) % times.length;
+        size = Math.min(size + 1, times.length);
+
+        if (samples == 0) {
+            firstTime = time;
+            firstCpuMillis = cpuMillis;
+        } else if (time > lastTime) {
+            // processes that are not waited for by one in the build take their CPU time with them, so it can drop
+            peakCpuCores = Math.max(peakCpuCores, Math.max(0, cpuMillis - lastCpuMillis) / (double) (time - lastTime));
+        }
+        samples++;
+        lastTime = time;
+        lastCpuMillis = cpuMillis;
+        lastReadBytes = readBytes;
+        lastWriteBytes = writeBytes;
+        peakRssBytes = Math.max(peakRssBytes, rssBytes);
+        totalRssBytes += rssBytes;
+        peakThreads = Math.max(peakThreads, threads);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The peak and average values over every sample taken
+     */
+    synchronized JSONObject summaryJson() {
+        long elapsed = lastTime - firstTime;
+        return new JSONObject()
+            .put("samples", samples)
+            .put("cpuMillis", lastCpuMillis)
+            .put("averageCpuCores", elapsed <= 0 ? 0.0 : round(Math.max(0, lastCpuMillis - firstCpuMillis) / (double) elapsed))
+            .put("peakCpuCores", round(peakCpuCores))
+            .put("averageRssBytes", samples == 0 ? 0 : totalRssBytes / samples)
+            .put("peakRssBytes", peakRssBytes)
+            .put("peakThreads", peakThreads)
+            .put("readBytes", lastReadBytes)
+            .put("writeBytes", lastWriteBytes);
+    }
+
+    /**
+     * Gets the kept samples, combining neighbouring samples if there are more than the maximum. Combined samples have
+     * the highest memory and thread count of the samples they replace, so peaks are not lost.
+     * @param maxPoints The most samples to return
+     */
+    synchronized JSONObject toJson(int maxPoints) {
+        int perPoint = Math.max(1, (size + maxPoints - 1) / maxPoints);
+        JSONArray time = new JSONArray();
+        JSONArray cpu = new JSONArray();
+        JSONArray rss = new JSONArray();
+        JSONArray read = new JSONArray();
+        JSONArray write = new JSONArray();
+        JSONArray thread = new JSONArray();
+        int oldest = (next - size + times.length) % times.length;
+        for (int start = 0; start < size; start += perPoint) {
+            int end = Math.min(size, start + perPoint);
+            long maxRss = 0;
+            int maxThreads = 0;
+            for (int j = start; j < end; j++) {
+                int index = (oldest + j) % times.length;
+                maxRss = Math.max(maxRss, rssBytes[index]);
+                maxThreads = Math.max(maxThreads, threads[index]);
+            }
+            int last = (oldest + end - 1) % times.length;
+            time.put(times[last]);
+            cpu.put(cpuMillis[last]);
+            rss.put(maxRss);
+            read.put(readBytes[last]);
+            write.put(writeBytes[last]);
+            thread.put(maxThreads);
+        }
+        return new JSONObject()
+            .put("intervalMillis", intervalMillis * perPoint)
+            .put("summary", summaryJson())
+            .put("samples", new JSONObject()
+                .put("time", time)
+                .put("cpuMillis", cpu)
+                .put("rssBytes", rss)
+                .put("readBytes", read)
+                .put("writeBytes", write)
+                .put("threads", thread));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
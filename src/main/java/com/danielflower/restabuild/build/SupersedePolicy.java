@@ -0,0 +1,23 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * What happens to older builds of the same git URL, branch and build parameter when a new one is submitted.
+ */
+public enum SupersedePolicy {
+
+    /**
+     * Every submitted build runs.
+     */
+    NONE,
+
+    /**
+     * Older builds that are still queued are cancelled, as only the newest result is of interest.
+     */
+    QUEUED,
+
+    /**
+     * Older builds that are queued or in progress are cancelled.
+     */
+    QUEUED_AND_RUNNING
+
+}
@@ -0,0 +1,19 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * How the files of a new build workspace are created.
+ */
+public enum WorkspaceMaterialization {
+
+    /**
+     * Each workspace is a new clone of the local bare repo, which writes out every file of the tree.
+     */
+    CLONE,
+
+    /**
+     * A pristine checkout of each commit is kept, and workspaces are copied from it using copy-on-write reflinks where
+     * the filesystem supports them (e.g. btrfs, XFS, APFS), or a plain file copy otherwise.
+     */
+    COPY_ON_WRITE
+
+}
@@ -0,0 +1,142 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.apache.commons.io.file.StandardDeleteOption;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.danielflower.restabuild.FileSandbox.dirPath;
+
+/**
+ * Creates the workspaces that builds run in.
+ * <p>When the pool size is greater than zero, the workspaces of finished builds are kept and handed to the next build
+ * of the same repo, which hard resets and cleans it to the new commit rather than cloning a fresh copy. Ignored files,
+ * such as <code>target/</code> directories, can optionally be kept so that the next build can be incremental.</p>
+ */
+public class WorkspacePool {
+    private static final Logger log = LoggerFactory.getLogger(WorkspacePool.class);
+
+    private final FileSandbox sandbox;
+    private final int maxIdlePerRepo;
+    private final boolean keepIgnoredFiles;
+    private final WorkspaceMaterialization materialization;
+    private final GitBackend gitBackend;
+    private final boolean checkoutSubmodules;
+    private final Map<String, Deque<File>> idle = new HashMap<>();
+
+    /**
+     * @param maxIdlePerRepo The maximum number of finished workspaces to keep for each repo, or 0 to always clone new ones
+     * @param keepIgnoredFiles If true then files ignored by git are not deleted when a workspace is reused
+     * @param materialization How new workspaces are created when there are none to reuse
+     * @param gitBackend The git implementation used to fetch and check out
+     * @param checkoutSubmodules If true then the submodules of each workspace are checked out from locally cached repos
+     */
+    public WorkspacePool(FileSandbox sandbox, int maxIdlePerRepo, boolean keepIgnoredFiles, WorkspaceMaterialization materialization, GitBackend gitBackend, boolean checkoutSubmodules) {
+        this.sandbox = sandbox;
+        this.maxIdlePerRepo = maxIdlePerRepo;
+        this.keepIgnoredFiles = keepIgnoredFiles;
+        this.materialization = materialization;
+        this.gitBackend = gitBackend;
+        this.checkoutSubmodules = checkoutSubmodules;
+    }
+
+    /**
+     * Fetches the latest changes, unless they were fetched after {@link RepoBranch#freshAfter}, without creating a
+     * workspace.
+     * @return the commit the branch is at, or null if the branch does not exist
+     */
+    ObjectId fetchHead(RepoBranch repoBranch, long timeoutMillis, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        RemoteGitRepo repo = RemoteGitRepo.create(repoBranch.url, sandbox, gitBackend);
+        repo.fetch(repoBranch.freshAfter >= 0 ? repoBranch.freshAfter : System.currentTimeMillis(), timeoutMillis, progressMonitor);
+        return repo.headOf(repoBranch.branch);
+    }
+
+    /**
+     * Fetches the latest changes, unless they were fetched after {@link RepoBranch#freshAfter}, and returns a workspace
+     * with the given branch checked out.
+     * <p>If the build asks for a sparse checkout, or the repo has a {@link RemoteGitRepo#SPARSE_CHECKOUT_FILE}, then
+     * a new sparse workspace is always created, as pooled workspaces are complete.</p>
+     */
+    Git acquire(RepoBranch repoBranch, long timeoutMillis, ProgressMonitor progressMonitor, Writer buildLog) throws GitAPIException, IOException {
+        RemoteGitRepo repo = RemoteGitRepo.create(repoBranch.url, sandbox, gitBackend);
+        long requested = repoBranch.freshAfter >= 0 ? repoBranch.freshAfter : System.currentTimeMillis();
+        Git git = checkout(repo, repoBranch, requested, timeoutMillis, progressMonitor, buildLog);
+        if (checkoutSubmodules) {
+            try {
+                repo.checkoutSubmodules(git, requested, timeoutMillis, progressMonitor, buildLog);
+            } catch (IOException | RuntimeException e) {
+                git.close();
+                throw e;
+            }
+        }
+        return git;
+    }
+
+    private Git checkout(RemoteGitRepo repo, RepoBranch repoBranch, long requested, long timeoutMillis, ProgressMonitor progressMonitor, Writer buildLog) throws GitAPIException, IOException {
+        List<String> sparsePaths = repoBranch.sparsePaths;
+        if (sparsePaths.isEmpty()) {
+            repo.fetch(requested, timeoutMillis, progressMonitor);
+            sparsePaths = repo.sparsePathsFromRepo(repoBranch.branch);
+        }
+        if (!sparsePaths.isEmpty()) {
+            buildLog.write("Creating a sparse checkout of " + String.join(", ", sparsePaths) + "\n");
+            return repo.pullFromGitAndCopyWorkingCopyToNewDir(repoBranch.branch, sparsePaths, materialization, requested, timeoutMillis, progressMonitor);
+        }
+        File reusable;
+        while ((reusable = takeIdle(repoBranch.url)) != null) {
+            Git git = repo.pullFromGitAndResetWorkspace(reusable, repoBranch.branch, keepIgnoredFiles, requested, timeoutMillis, progressMonitor);
+            if (git != null) {
+                buildLog.write("Reusing the workspace of a previous build\n");
+                return git;
+            }
+            RemoteGitRepo.deleteDirectoryQuietly(reusable, StandardDeleteOption.OVERRIDE_READ_ONLY);
+        }
+        return repo.pullFromGitAndCopyWorkingCopyToNewDir(repoBranch.branch, sparsePaths, materialization, requested, timeoutMillis, progressMonitor);
+    }
+
+    /**
+     * Returns a workspace that is no longer needed by its build to the pool.
+     * @return true if it was added to the pool; false if the pool is full or disabled, in which case the caller
+     * should delete the workspace
+     */
+    boolean release(URIish gitUrl, File workspace, BuildStatus finalStatus) {
+        if (maxIdlePerRepo < 1 || (finalStatus != BuildStatus.SUCCESS && finalStatus != BuildStatus.FAILURE)
+            || RemoteGitRepo.isSparse(workspace)) {
+            return false;
+        }
+        synchronized (idle) {
+            Deque<File> workspaces = idle.computeIfAbsent(gitUrl.toString(), k -> new ArrayDeque<>());
+            if (workspaces.size() >= maxIdlePerRepo) {
+                return false;
+            }
+            workspaces.push(workspace);
+        }
+        log.info("Added " + dirPath(workspace) + " to the workspace pool");
+        return true;
+    }
+
+    private File takeIdle(URIish gitUrl) {
+        synchronized (idle) {
+            Deque<File> workspaces = idle.get(gitUrl.toString());
+            File workspace = workspaces == null ? null : workspaces.poll();
+            if (workspaces != null && workspaces.isEmpty()) {
+                idle.remove(gitUrl.toString());
+            }
+            return workspace;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.danielflower.restabuild.build;
+
+import org.apache.commons.io.file.StandardDeleteOption;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.TextProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fetches the latest changes and creates the workspace for a build while it is still in the queue, so that when the
+ * build is given a slot it can start its build script straight away.
+ * <p>The git output is buffered until the build starts, at which point it is copied into the build log.</p>
+ */
+class WorkspacePrefetch {
+    private static final Logger log = LoggerFactory.getLogger(WorkspacePrefetch.class);
+
+    private enum State {WAITING, RUNNING, DONE, TAKEN, DISCARDED}
+
+    private final RepoBranch repoBranch;
+    private final WorkspacePool workspaces;
+    private final long timeoutMillis;
+    private final StringWriter output = new StringWriter();
+    private final CompletableFuture<Git> result = new CompletableFuture<>();
+    private State state = State.WAITING;
+
+    private WorkspacePrefetch(RepoBranch repoBranch, WorkspacePool workspaces, long timeoutMillis) {
+        this.repoBranch = repoBranch;
+        this.workspaces = workspaces;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static WorkspacePrefetch start(Executor executor, RepoBranch repoBranch, WorkspacePool workspaces, long timeoutMillis) {
+        WorkspacePrefetch prefetch = new WorkspacePrefetch(repoBranch, workspaces, timeoutMillis);
+        executor.execute(prefetch::run);
+        return prefetch;
+    }
+
+    private void run() {
+        synchronized (this) {
+            if (state != State.WAITING) {
+                result.complete(null);
+                return;
+            }
+            state = State.RUNNING;
+        }
+        Git git = null;
+        try {
+            output.write("Fetching latest changes from git while the build is queued...\n");
+            TextProgressMonitor progressMonitor = new TextProgressMonitor(output) {
+                public boolean isCancelled() {
+                    return isDiscarded();
+                }
+            };
+            git = workspaces.acquire(repoBranch, timeoutMillis, progressMonitor, output);
+        } catch (Exception e) {
+            log.info("Prefetch of " + repoBranch.url + " failed so it will be retried when the build starts: " + e.getMessage());
+            result.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            if (state == State.DISCARDED) {
+                deleteWorkspace(git);
+                git = null;
+            } else {
+                state = State.DONE;
+            }
+        }
+        result.complete(git);
+    }
+
+    /**
+     * @return true if the fetch has started, so it may not include commits pushed after this point
+     */
+    synchronized boolean hasStarted() {
+        return state != State.WAITING;
+    }
+
+    private synchronized boolean isDiscarded() {
+        return state == State.DISCARDED;
+    }
+
+    /**
+     * Hands the prepared workspace over to the build, waiting for the prefetch to complete if it is still running.
+     * @param buildLog The log that the buffered git output is copied to
+     * @param maxWaitMillis The longest time to wait for a running prefetch, which is the time the build has left
+     * @return The workspace, or null if the prefetch was not started, failed, did not finish in time, or was
+     * discarded while waiting, in which case the build should fetch and check out itself.
+     */
+    Git take(Writer buildLog, long maxWaitMillis) throws InterruptedException, IOException {
+        synchronized (this) {
+            if (state == State.WAITING || state == State.DISCARDED) {
+                state = State.DISCARDED;
+                return null;
+            }
+        }
+        Git git;
+        try {
+            git = result.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            git = null;
+        } catch (TimeoutException e) {
+            discard();
+            return null;
+        }
+        synchronized (this) {
+            if (state == State.DISCARDED) {
+                return null;
+            }
+            state = State.TAKEN;
+        }
+        buildLog.write(output.toString());
+        buildLog.flush();
+        return git;
+    }
+
+    /**
+     * Stops the prefetch if it has not started yet, or deletes the workspace if it was already created. A build
+     * waiting to take the workspace stops waiting.
+     */
+    void discard() {
+        Git git = null;
+        synchronized (this) {
+            if (state == State.TAKEN) {
+                return;
+            }
+            if (state == State.DONE) {
+                git = result.getNow(null);
+            }
+            state = State.DISCARDED;
+        }
+        // a running prefetch deletes its own workspace once it sees it was discarded
+        result.complete(null);
+        deleteWorkspace(git);
+    }
+
+    private static void deleteWorkspace(Git git) {
+        if (git != null) {
+            File workTree = Objects.requireNonNull(git.getRepository().getWorkTree());
+            git.close();
+            RemoteGitRepo.deleteDirectoryQuietly(workTree, StandardDeleteOption.OVERRIDE_READ_ONLY);
+        }
+    }
+}
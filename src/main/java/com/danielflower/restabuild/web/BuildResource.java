@@ -2,30 +2,42 @@ package com.danielflower.restabuild.web;
 
 import com.danielflower.restabuild.FileSandbox;
 import com.danielflower.restabuild.build.BuildDatabase;
+import com.danielflower.restabuild.build.BuildPriority;
 import com.danielflower.restabuild.build.BuildQueue;
 import com.danielflower.restabuild.build.BuildResult;
+import com.danielflower.restabuild.build.ConcurrencyLimit;
+import com.danielflower.restabuild.build.RemoteGitRepo;
 import com.danielflower.restabuild.build.RepoBranch;
 import io.muserver.ContentTypes;
 import io.muserver.HeaderNames;
 import io.muserver.HeaderValues;
+import io.muserver.MuRequest;
 import io.muserver.MuResponse;
 import io.muserver.rest.ApiResponse;
 import io.muserver.rest.Description;
 import io.muserver.rest.ResponseHeader;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 @Path("api/v1/builds")
@@ -38,16 +50,29 @@ public class BuildResource {
      * things like character encoding, even though encoding is explicitly set).
      */
     private final String bufferBuster = " ".repeat(1024);
+    /**
+     * The most builds that one batch can submit, so that a single request cannot take the whole queue.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
     private final FileSandbox fileSandbox;
     private final BuildDatabase database;
     private final BuildQueue buildQueue;
     private final ExecutorService executorService;
+    private final String clientHeader;
+    private final IdempotencyKeys idempotencyKeys;
 
-    public BuildResource(FileSandbox fileSandbox, BuildDatabase database, BuildQueue buildQueue, ExecutorService executorService) {
+    /**
+     * @param clientHeader The request header that identifies the client for the per-client queue limit, or null to use
+     *                     the remote address
+     * @param idempotencyKeys The builds created for the <code>Idempotency-Key</code> headers of recent submissions
+     */
+    public BuildResource(FileSandbox fileSandbox, BuildDatabase database, BuildQueue buildQueue, ExecutorService executorService, String clientHeader, IdempotencyKeys idempotencyKeys) {
         this.fileSandbox = fileSandbox;
         this.buildQueue = buildQueue;
         this.database = database;
         this.executorService = executorService;
+        this.clientHeader = clientHeader;
+        this.idempotencyKeys = idempotencyKeys;
     }
 
     @POST
@@ -56,27 +81,170 @@ public class BuildResource {
     @Description(value = "Submits a git URL to be built", details = "Note that the response will contain a JSON document" +
         " describing the build, and also a redirect to redirect to the log file. If consuming as an API, ignore the" +
         " redirect and parse the body as JSON.")
-    @ApiResponse(code = "303", message = "Build successfully queued. Check the build's URL to track status.",
+    @ApiResponse(code = "303", message = "Build successfully queued. Check the build's URL to track status. If duplicate" +
+        " builds are merged, this may be an identical build that was already queued.",
         contentType = "application/json",
         responseHeaders = {@ResponseHeader(name = "Location", description = "The URL of the Log output for the build"),
-            @ResponseHeader(name = "Build-URL", description = "The URL of the build resource. Query this to find the build status etc.")})
+            @ResponseHeader(name = "Build-URL", description = "The URL of the build resource. Query this to find the build status etc."),
+            @ResponseHeader(name = "Idempotent-Replayed", description = "Set to true if the build was created by an earlier submission with the same Idempotency-Key.")})
     @ApiResponse(code = "400", message = "No gitUrl form parameter was specified.", contentType = "text/plain")
+    @ApiResponse(code = "422", message = "The Idempotency-Key was already used for a submission with different parameters.", contentType = "text/plain")
+    @ApiResponse(code = "429", message = "Too many builds are already queued in total, for the repo, or from the client.", contentType = "text/plain",
+        responseHeaders = {@ResponseHeader(name = "Retry-After", description = "The estimated number of seconds until there is room in the queue")})
     public Response create(@FormParam("gitUrl") @Description(value = "The URL of a git repo that includes a `build.sh` or `build.bat` file. " +
         "It can be any type of Git URL (e.g. SSH or HTTPS) that the server has permission for.", example = "https://github.com/3redronin/mu-server-sample.git") String gitUrl,
                            @DefaultValue("master") @FormParam("branch") @Description(value = "The value of the git branch. This parameter is optional.") String branch,
                            @FormParam("buildParam") @Description(value = "The parameter for the `build.sh` or `build.bat` file. This parameter is optional.") String buildParam,
-                           @Context UriInfo uriInfo) throws IOException {
-        BuildResult result = createInternal(gitUrl, branch, buildParam, uriInfo);
+                           @FormParam("sparsePaths") @Description(value = "A comma separated list of directories to check out, for repos where the build " +
+                               "only needs part of the tree. Files in the root of the repo are always checked out. If not specified, the directories listed in a `" +
+                               RemoteGitRepo.SPARSE_CHECKOUT_FILE + "` file in the root of the repo are used, if it exists. This parameter is optional.", example = "services/billing,libs/common") String sparsePaths,
+                           @DefaultValue("NORMAL") @FormParam("priority") @Description(value = "The priority class of the build: `HIGH`, `NORMAL` or `LOW`. " +
+                               "Queued builds of a higher class start first, and within a class the queued builds of different repos take turns. This parameter is optional.") String priority,
+                           @FormParam("maxConcurrent") @Description(value = "The maximum number of builds of this repo, or of this branch if `concurrencyScope` is `BRANCH`, " +
+                               "that can run at the same time as this one. Use 1 for builds that must never run concurrently, such as builds that push tags. " +
+                               "If the server also has a limit configured, the lower one applies. This parameter is optional.", example = "1") String maxConcurrent,
+                           @DefaultValue("REPO") @FormParam("concurrencyScope") @Description(value = "Whether `maxConcurrent` applies to all builds of the repo (`REPO`) " +
+                               "or only to builds of the same branch (`BRANCH`). This parameter is optional.") String concurrencyScope,
+                           @DefaultValue("false") @FormParam("reuseResult") @Description(value = "If `true`, and a build of the same commit, build parameter and sparse paths " +
+                               "succeeded recently, this build succeeds as soon as it has checked out the commit, with a link to the earlier build, rather than running " +
+                               "the build script again. Only use this for builds whose result depends on nothing but the checked out files. This parameter is optional.") boolean reuseResult,
+                           @HeaderParam("Idempotency-Key") @Description(value = "A unique value, such as a UUID, generated by the client for each build it wants. " +
+                               "If a submission with the same key was made recently by the same client, the build from that submission is returned rather than " +
+                               "a new build being created, so submissions can be safely retried. Reusing a key with different parameters is rejected. This header is optional.") String idempotencyKey,
+                           @Context UriInfo uriInfo, @Context MuRequest request) throws IOException, InterruptedException {
+        String client = clientOf(request);
+        BuildResult result = null;
+        boolean replayed = false;
+        CompletableFuture<String> claim = null;
+        String scopedKey = null;
+        if (idempotencyKey != null && !idempotencyKey.isBlank() && idempotencyKeys.enabled()) {
+            if (idempotencyKey.length() > IdempotencyKeys.MAX_KEY_LENGTH) {
+                throw new BadRequestException("The Idempotency-Key header cannot be longer than " + IdempotencyKeys.MAX_KEY_LENGTH + " characters");
+            }
+            // keys are only unique to the client that generated them
+            scopedKey = client + " " + idempotencyKey.trim();
+            claim = new CompletableFuture<>();
+            String fingerprint = DigestUtils.sha256Hex(String.join("\n", gitUrl, branch, buildParam, sparsePaths, priority,
+                maxConcurrent, concurrencyScope, String.valueOf(reuseResult)));
+            CompletableFuture<String> earlier = idempotencyKeys.claim(scopedKey, fingerprint, claim, System.currentTimeMillis());
+            if (earlier != null) {
+                claim = null;
+                String originalId = waitForOriginal(earlier);
+                result = originalId == null ? null : database.get(originalId).orElse(null);
+                replayed = result != null;
+            }
+        }
+        if (result == null) {
+            try {
+                result = createInternal(gitUrl, branch, buildParam, sparsePaths, priority, maxConcurrent, concurrencyScope, reuseResult, -1, client, uriInfo.getRequestUri());
+            } catch (RuntimeException | IOException e) {
+                if (claim != null) {
+                    idempotencyKeys.release(scopedKey, claim);
+                }
+                throw e;
+            }
+            if (claim != null) {
+                claim.complete(result.id);
+            }
+        }
         UriBuilder buildPath = uriInfo.getRequestUriBuilder().path(result.id);
-        return Response.seeOther(uriInfo.getRequestUriBuilder().path(result.id).path("log").build())
+        Response.ResponseBuilder response = Response.seeOther(uriInfo.getRequestUriBuilder().path(result.id).path("log").build())
             .cacheControl(CacheControl.valueOf("no-cache"))
             .header("Content-Type", MediaType.APPLICATION_JSON)
             .header("Build-URL", buildPath.build())
-            .entity(jsonForResult(buildPath, result).toString(4))
+            .entity(jsonForResult(buildPath, result).toString(4));
+        if (replayed) {
+            response.header("Idempotent-Replayed", "true");
+        }
+        return response.build();
+    }
+
+    /**
+     * @return The ID of the build created by an earlier submission with the same idempotency key, or null if it failed
+     */
+    private static String waitForOriginal(CompletableFuture<String> earlier) throws InterruptedException {
+        try {
+            return earlier.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            throw new ServiceUnavailableException("A build with the same Idempotency-Key is still being submitted");
+        }
+    }
+
+    private String clientOf(MuRequest request) {
+        String client = clientHeader == null ? null : request.headers().get(clientHeader);
+        return client == null || client.isBlank() ? request.remoteAddress() : client.trim();
+    }
+
+    @POST
+    @Path("batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description(value = "Submits many builds of one git URL at once", details = "The request body is a JSON object with a `gitUrl` and a `builds` array" +
+        " of objects that each have an optional `branch` and `buildParam`. The optional `priority`, `maxConcurrent`, `concurrencyScope` and" +
+        " `reuseResult` fields are the same as for a single build and apply to all of the builds. The builds share a single fetch of the repo:" +
+        " the first to start fetches and the others use what it fetched. The response has a `builds` array in the same order as the request," +
+        " with either the build, or an `error` and `status` for a build that could not be queued, and a `retryAfterSeconds` if the queue" +
+        " was full. At most " + MAX_BATCH_SIZE + " builds can be submitted in one batch.")
+    @ApiResponse(code = "200", message = "The builds were submitted. Check each one for an error.", contentType = "application/json")
+    @ApiResponse(code = "400", message = "The body was not valid JSON, the gitUrl or a shared field was invalid, or there were too many builds.", contentType = "text/plain")
+    public Response createBatch(String body, @Context UriInfo uriInfo, @Context MuRequest request) throws IOException {
+        JSONObject batch;
+        JSONArray builds;
+        try {
+            batch = new JSONObject(body);
+            builds = batch.getJSONArray("builds");
+        } catch (JSONException e) {
+            throw new BadRequestException("The body should be a JSON object with a gitUrl and a builds array: " + e.getMessage());
+        }
+        if (builds.length() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("A batch can have at most " + MAX_BATCH_SIZE + " builds but had " + builds.length());
+        }
+        String gitUrl = batch.optString("gitUrl", null);
+        validateGitUrl(gitUrl);
+        String priority = batch.optString("priority", null);
+        String maxConcurrent = batch.has("maxConcurrent") ? String.valueOf(batch.get("maxConcurrent")) : null;
+        String concurrencyScope = batch.optString("concurrencyScope", null);
+        validatePriority(priority);
+        validateConcurrencyLimit(maxConcurrent, concurrencyScope);
+        boolean reuseResult = batch.optBoolean("reuseResult", false);
+
+        String client = clientOf(request);
+        URI buildsUri = uriInfo.getRequestUri().resolve("../builds");
+        long submitted = System.currentTimeMillis();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < builds.length(); i++) {
+            JSONObject build = builds.optJSONObject(i);
+            String branch = build == null ? null : build.optString("branch", null);
+            String buildParam = build == null ? null : build.optString("buildParam", null);
+            try {
+                BuildResult result = createInternal(gitUrl, branch, buildParam, null, priority, maxConcurrent, concurrencyScope, reuseResult, submitted, client, buildsUri);
+                results.put(jsonForResult(UriBuilder.fromUri(buildsUri).path(result.id), result));
+            } catch (WebApplicationException e) {
+                Response response = e.getResponse();
+                // the reason is the response body, as the exception message can be the generic text of the status
+                Object reason = response.getEntity();
+                String retryAfter = response.getHeaderString(HeaderNames.RETRY_AFTER.toString());
+                results.put(new JSONObject()
+                    .put("branch", branch)
+                    .put("buildParam", buildParam)
+                    .put("status", response.getStatus())
+                    .put("error", reason instanceof String ? reason : e.getMessage())
+                    .putOpt("retryAfterSeconds", retryAfter == null ? null : Long.valueOf(retryAfter)));
+            }
+        }
+        return Response.ok(new JSONObject().put("builds", results).toString(4))
+            .cacheControl(CacheControl.valueOf("no-cache"))
             .build();
     }
 
-    private BuildResult createInternal(String gitUrl, String branch, String buildParam, UriInfo uriInfo) throws IOException {
+    /**
+     * @param freshAfter The time a fetch must have started at or after for the build to use it, or -1 to fetch when
+     *                   the build starts
+     * @param buildsUri The URI of the builds resource, which the URIs of the new build are under
+     */
+    private BuildResult createInternal(String gitUrl, String branch, String buildParam, String sparsePaths, String priority, String maxConcurrent, String concurrencyScope, boolean reuseResult, long freshAfter, String client, URI buildsUri) throws IOException {
         URIish gitURIish = validateGitUrl(gitUrl);
 
         String gitBranch = branch;
@@ -84,13 +252,37 @@ public class BuildResource {
             gitBranch = "master";
         }
 
-        RepoBranch repoBranch = new RepoBranch(gitURIish, gitBranch);
+        RepoBranch repoBranch;
+        try {
+            repoBranch = new RepoBranch(gitURIish, gitBranch, RepoBranch.parseSparsePaths(sparsePaths), freshAfter);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        BuildPriority buildPriority = validatePriority(priority);
+        ConcurrencyLimit concurrencyLimit = validateConcurrencyLimit(maxConcurrent, concurrencyScope);
+        // a duplicate does not add to the queue, so it is merged before the queue limits are checked
+        BuildResult queued = buildQueue.mergeIntoQueued(repoBranch, buildParam, buildPriority, concurrencyLimit, reuseResult);
+        if (queued != null) {
+            return queued;
+        }
+        buildQueue.checkAdmission(gitURIish, client);
         String id = UUID.randomUUID().toString().replace("-", "");
-        Map<String, String> environment = getEnrichedEnvironment(id, uriInfo);
-        BuildResult result = new BuildResult(fileSandbox, repoBranch, buildParam, id, environment, executorService);
+        Map<String, String> environment = getEnrichedEnvironment(id, buildsUri);
+        BuildResult result = new BuildResult(fileSandbox, repoBranch, buildParam, buildPriority, concurrencyLimit, reuseResult, id, environment, executorService);
+        // saved before it is queued, so it can be found as soon as it starts
         database.save(result);
-        buildQueue.enqueue(result);
-        return result;
+        BuildResult queuedResult;
+        try {
+            queuedResult = buildQueue.enqueue(result, client);
+        } catch (IOException | RuntimeException e) {
+            database.remove(id);
+            result.discard();
+            throw e;
+        }
+        if (queuedResult != result) {
+            database.remove(id);
+        }
+        return queuedResult;
     }
 
     @NotNull
@@ -107,8 +299,37 @@ public class BuildResource {
         return gitURIish;
     }
 
-    private Map<String, String> getEnrichedEnvironment(String buildId, UriInfo uriInfo) {
-        String logUrl = uriInfo.getRequestUriBuilder().path(buildId).path("log").build().toString();
+    @NotNull
+    private static BuildPriority validatePriority(String priority) {
+        if (priority == null || priority.trim().isEmpty()) {
+            return BuildPriority.NORMAL;
+        }
+        try {
+            return BuildPriority.valueOf(priority.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("An invalid priority was specified. Valid values are " + Arrays.toString(BuildPriority.values()));
+        }
+    }
+
+    private static ConcurrencyLimit validateConcurrencyLimit(String maxConcurrent, String concurrencyScope) {
+        if (maxConcurrent == null || maxConcurrent.trim().isEmpty()) {
+            return null;
+        }
+        ConcurrencyLimit.Scope scope;
+        try {
+            scope = ConcurrencyLimit.Scope.valueOf(concurrencyScope == null || concurrencyScope.trim().isEmpty() ? "REPO" : concurrencyScope.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("An invalid concurrencyScope was specified. Valid values are " + Arrays.toString(ConcurrencyLimit.Scope.values()));
+        }
+        try {
+            return new ConcurrencyLimit(Integer.parseInt(maxConcurrent.trim()), scope);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("maxConcurrent must be a number that is at least 1");
+        }
+    }
+
+    private Map<String, String> getEnrichedEnvironment(String buildId, URI buildsUri) {
+        String logUrl = UriBuilder.fromUri(buildsUri).path(buildId).path("log").build().toString();
         Map<String, String> envMap = new HashMap<>(System.getenv());
         envMap.put("RESTABUILD_ID", buildId);
         envMap.put("RESTABUILD_LOG_URL", logUrl);
@@ -138,14 +359,20 @@ public class BuildResource {
     @GET
     @Path("{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    @Description("Gets the build information for a specific build")
+    @Description(value = "Gets the build information for a specific build", details = "While the build is queued, the response also " +
+        "includes its `queuePosition`, and the `estimatedStartAt` time and `expectedDurationMillis` based on how long recent similar builds took.")
     @ApiResponse(code = "200", message = "Success")
     @ApiResponse(code = "404", message = "No build with that ID exists", contentType = "text/plain")
     public Response get(@PathParam("id") @Description("The generated build ID which is returned when a new build is posted")
                           String id, @Context UriInfo uriInfo) {
         Optional<BuildResult> br = database.get(id);
         if (br.isPresent()) {
-            return Response.ok(jsonForResult(uriInfo.getRequestUriBuilder(), br.get()).toString(4))
+            JSONObject json = jsonForResult(uriInfo.getRequestUriBuilder(), br.get());
+            JSONObject queueEstimate = buildQueue.queueEstimate(br.get());
+            if (queueEstimate != null) {
+                queueEstimate.keySet().forEach(key -> json.put(key, queueEstimate.get(key)));
+            }
+            return Response.ok(json.toString(4))
                 .cacheControl(CacheControl.valueOf("no-cache"))
                 .build();
         } else {
@@ -161,7 +388,7 @@ public class BuildResource {
     @ApiResponse(code = "404", message = "No build with that ID exists", contentType = "text/plain")
     @ApiResponse(code = "409", message = "The build was not in a cancelable state", contentType = "text/plain")
     public Response cancel(@PathParam("id") @Description("The generated build ID which is returned when a new build is posted")
-                             String id, @Context UriInfo uriInfo) throws InterruptedException {
+                             String id, @Context UriInfo uriInfo) {
         Optional<BuildResult> obr = database.get(id);
         if (obr.isPresent()) {
             BuildResult br = obr.get();
@@ -179,10 +406,32 @@ public class BuildResource {
         }
     }
 
+    @GET
+    @Path("{id}/resources")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description(value = "Gets the resources used by a build over time", details = "Returns a `summary` of the peak and average " +
+        "CPU, memory and thread use, and the `samples` as arrays of the sample `time`, the `cpuMillis`, `readBytes` and " +
+        "`writeBytes` used so far, and the `rssBytes` and `threads` in use. Once a build has finished, the samples are " +
+        "combined so there are at most 200 of them. Resources are only recorded on Linux.")
+    @ApiResponse(code = "200", message = "Success")
+    @ApiResponse(code = "404", message = "No build with that ID exists, or no resources were recorded for it", contentType = "text/plain")
+    public Response getResources(@PathParam("id") @Description("The generated build ID which is returned when a new build is posted")
+                                     String id) throws IOException {
+        Optional<BuildResult> br = database.get(id);
+        JSONObject resources = br.isPresent() ? br.get().resourcesJson() : null;
+        if (resources == null) {
+            throw new NotFoundException();
+        }
+        return Response.ok(resources.toString(4))
+            .cacheControl(CacheControl.valueOf("no-cache"))
+            .build();
+    }
+
     private static JSONObject jsonForResult(UriBuilder resourcePath, BuildResult result) {
         JSONObject json = result.toJson()
             .put("url", resourcePath.replaceQuery(null).build())
-            .put("logUrl", resourcePath.clone().path("log").replaceQuery(null).build());
+            .put("logUrl", resourcePath.clone().path("log").replaceQuery(null).build())
+            .put("resourcesUrl", resourcePath.clone().path("resources").replaceQuery(null).build());
         if (result.isCancellable()) {
             json.put("cancelUrl", resourcePath.clone().path("cancel").replaceQuery(null).build());
         }
@@ -0,0 +1,110 @@
+package com.danielflower.restabuild.web;
+
+import org.json.JSONObject;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remembers the build created for each idempotency key sent with a build submission, so that a client retrying a
+ * submission gets the original build rather than a second one.
+ * <p>Each key is stored with a fingerprint of the parameters it was submitted with, so that a key reused for a
+ * different build is rejected rather than returning a build that was not asked for.</p>
+ * <p>Keys are held in the order they were first seen, which with a single time to live is also the order they
+ * expire, so expired keys are removed from the front as new ones are added. Once there are too many keys the oldest
+ * are removed even if they have not expired, so memory stays bounded however fast builds are submitted.</p>
+ */
+public class IdempotencyKeys {
+
+    static final int MAX_KEY_LENGTH = 255;
+
+    private final long ttlMillis;
+    private final int maxKeys;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private long replays;
+    private long evicted;
+
+    /**
+     * @param ttlMillis How long a key is remembered for
+     * @param maxKeys The most keys to remember, or 0 to ignore idempotency keys
+     */
+    public IdempotencyKeys(long ttlMillis, int maxKeys) {
+        this.ttlMillis = ttlMillis;
+        this.maxKeys = Math.max(0, maxKeys);
+    }
+
+    boolean enabled() {
+        return maxKeys > 0;
+    }
+
+    /**
+     * Claims a key for a new submission, unless an earlier submission already has it.
+     * @param fingerprint Identifies the parameters of the submission
+     * @param buildId Completed by the caller with the ID of the build it creates, if the claim succeeds
+     * @return null if the key was claimed, otherwise the ID of the build of the earlier submission, which may still be
+     * being created, and is completed with null if that submission failed
+     * @throws ClientErrorException with a 422 status if the earlier submission had different parameters
+     */
+    synchronized CompletableFuture<String> claim(String key, String fingerprint, CompletableFuture<String> buildId, long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().claimedAt <= ttlMillis) {
+                break;
+            }
+            it.remove();
+        }
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            if (!existing.fingerprint.equals(fingerprint)) {
+                String message = "The Idempotency-Key was already used for a build with different parameters";
+                throw new ClientErrorException(message, Response.status(422).type(MediaType.TEXT_PLAIN_TYPE).entity(message).build());
+            }
+            replays++;
+            return existing.buildId;
+        }
+        entries.put(key, new Entry(fingerprint, buildId, now));
+        if (entries.size() > maxKeys) {
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evicted++;
+        }
+        return null;
+    }
+
+    /**
+     * Gives up a claim after the submission failed, so that a retry can try again.
+     */
+    synchronized void release(String key, CompletableFuture<String> buildId) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.buildId == buildId) {
+            entries.remove(key);
+        }
+        buildId.complete(null);
+    }
+
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+            .put("keys", entries.size())
+            .put("maxKeys", maxKeys)
+            .put("ttlMillis", ttlMillis)
+            .put("replays", replays)
+            .put("evicted", evicted);
+    }
+
+    private static class Entry {
+        private final String fingerprint;
+        private final CompletableFuture<String> buildId;
+        private final long claimedAt;
+
+        private Entry(String fingerprint, CompletableFuture<String> buildId, long claimedAt) {
+            this.fingerprint = fingerprint;
+            this.buildId = buildId;
+            this.claimedAt = claimedAt;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.danielflower.restabuild.web;
+
+import io.muserver.rest.Description;
+import org.json.JSONObject;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+import java.util.function.Supplier;
+
+@Path("api/v1/metrics")
+@Description("Metrics")
+public class MetricsResource {
+
+    private final Map<String, Supplier<JSONObject>> sources;
+
+    /**
+     * @param sources The named sections of the metrics document, each of which is generated on every request
+     */
+    public MetricsResource(Map<String, Supplier<JSONObject>> sources) {
+        this.sources = sources;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets metrics about the build server, such as repo maintenance statistics")
+    public Response get() {
+        JSONObject result = new JSONObject();
+        sources.forEach((name, source) -> result.put(name, source.get()));
+        return Response.ok(result.toString(4))
+            .cacheControl(CacheControl.valueOf("no-cache"))
+            .build();
+    }
+}
@@ -2,12 +2,14 @@ package com.danielflower.restabuild.web;
 
 import io.muserver.Method;
 import io.muserver.MuServer;
+import io.muserver.MuServerBuilder;
 import io.muserver.Mutils;
 import io.muserver.rest.CORSConfigBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.muserver.ContextHandlerBuilder.context;
@@ -25,9 +27,16 @@ public class WebServer implements AutoCloseable {
         this.server = server;
     }
 
-    public static WebServer start(int port, String context, BuildResource buildResource, int buildTimeoutMinutes) throws IOException {
+    /**
+     * @param handlerExecutor The executor that runs request handlers, or null to use the web server's default
+     */
+    public static WebServer start(int port, String context, BuildResource buildResource, MetricsResource metricsResource, int buildTimeoutMinutes, ExecutorService handlerExecutor) throws IOException {
         boolean hasContext = !Mutils.nullOrEmpty(context);
-        MuServer server = muServer()
+        MuServerBuilder builder = muServer();
+        if (handlerExecutor != null) {
+            builder.withHandlerExecutor(handlerExecutor);
+        }
+        MuServer server = builder
             .withHttpPort(port)
             .withIdleTimeout(buildTimeoutMinutes + 1, TimeUnit.MINUTES)
             .withRequestTimeout(buildTimeoutMinutes + 1, TimeUnit.MINUTES)
@@ -43,7 +52,7 @@ public class WebServer implements AutoCloseable {
             })
             .addHandler(
                 context(context)
-                    .addHandler(restHandler(buildResource)
+                    .addHandler(restHandler(buildResource, metricsResource)
                         .withCORS(CORSConfigBuilder.corsConfig().withAllOriginsAllowed())
                         .withOpenApiJsonUrl("/openapi.json")
                         .withOpenApiHtmlUrl("/api.html")
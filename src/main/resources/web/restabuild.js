@@ -21,6 +21,7 @@
         var urlBox = $('#gitUrlBox');
         var branchBox = $('#branchBox');
         var buildParamBox = $('#buildParamBox');
+        var sparsePathsBox = $('#sparsePathsBox');
         var path = location.pathname;
         var apiLink = $('#apiLink');
         apiLink.textContent = apiLink.href;
@@ -30,18 +31,21 @@
             urlBox.value = qs.get('url');
             branchBox.value = qs.get('branch') || '';
             buildParamBox.value = qs.get('param') || '';
+            sparsePathsBox.value = qs.get('sparse') || '';
         }
 
         var update = function () {
             var value = urlBox.value;
             var branch = branchBox.value;
             var buildParam = buildParamBox.value;
-            cc.textContent = 'curl -LNs -F \'gitUrl=' + (value || 'git-url') + '\' ' + '-F \'branch=' + (branch || 'master') + '\' ' + (buildParam ? '-F \'param=' + buildParam + '\' ' : '') + '\'' + form.action + '\'';
+            var sparsePaths = sparsePathsBox.value;
+            cc.textContent = 'curl -LNs -F \'gitUrl=' + (value || 'git-url') + '\' ' + '-F \'branch=' + (branch || 'master') + '\' ' + (buildParam ? '-F \'param=' + buildParam + '\' ' : '') + (sparsePaths ? '-F \'sparsePaths=' + sparsePaths + '\' ' : '') + '\'' + form.action + '\'';
             history.replaceState(null, null, value ? encodeURI(path) + '?url=' + encodeURIComponent(value) : encodeURI(path));
         };
         urlBox.addEventListener('input', update);
         branchBox.addEventListener('input', update);
         buildParamBox.addEventListener('input', update);
+        sparsePathsBox.addEventListener('input', update);
         update();
 
         form.addEventListener('submit', function () {
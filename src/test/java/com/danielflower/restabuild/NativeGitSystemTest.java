@@ -0,0 +1,20 @@
+package com.danielflower.restabuild;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs all the system tests with the git command line tool instead of JGit.
+ */
+public class NativeGitSystemTest extends SystemTest {
+
+    @BeforeClass
+    public static void start() throws Exception {
+        File overrides = new File("target/native-git-config.properties");
+        FileUtils.write(overrides, Config.GIT_BACKEND + "=NATIVE\n", StandardCharsets.UTF_8);
+        startApp("sample-config.properties", overrides.getPath());
+    }
+}
@@ -1,8 +1,11 @@
 package com.danielflower.restabuild;
 
 import com.danielflower.restabuild.build.BuildStatus;
+import com.danielflower.restabuild.web.BuildResource;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.FormRequestContent;
+import org.eclipse.jetty.client.util.StringRequestContent;
 import org.eclipse.jetty.util.Fields;
 import org.hamcrest.Matchers;
 import org.jetbrains.annotations.NotNull;
@@ -15,6 +18,7 @@ import scaffolding.RestClient;
 import java.net.URI;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
@@ -31,7 +35,11 @@ public class SystemTest {
 
     @BeforeClass
     public static void start() throws Exception {
-        config = Config.load(new String[]{"sample-config.properties"});
+        startApp("sample-config.properties");
+    }
+
+    static void startApp(String... configFiles) throws Exception {
+        config = Config.load(configFiles);
         app = new App(config);
         app.start();
     }
@@ -187,6 +195,92 @@ public class SystemTest {
         ));
     }
 
+    @Test
+    public void buildsOfACommitThatAlreadySucceededCanReuseTheResult() throws Exception {
+        AppRepo appRepo = AppRepo.create("env-vars");
+        Fields fields = new Fields();
+        fields.add("gitUrl", appRepo.gitUrl());
+        fields.add("reuseResult", "true");
+        JSONObject first = waitForBuildToFinish(new JSONObject(client.FORM(buildsUrl(), fields).getContentAsString()), BuildStatus.SUCCESS);
+        assertThat(first.isNull("reusedResultOf"), is(true));
+
+        JSONObject second = waitForBuildToFinish(new JSONObject(client.FORM(buildsUrl(), fields).getContentAsString()), BuildStatus.SUCCESS);
+        assertThat(second.getJSONObject("reusedResultOf").getString("id"), equalTo(first.getString("id")));
+        assertThat(client.GET(second.getString("logUrl")).getContentAsString(),
+            allOf(containsString("was already built successfully by build " + first.getString("id")),
+                not(containsString("Created new instance in"))));
+    }
+
+    @Test
+    public void submissionsRetriedWithTheSameIdempotencyKeyReturnTheOriginalBuild() throws Exception {
+        AppRepo appRepo = AppRepo.create("env-vars");
+        Fields fields = new Fields();
+        fields.add("gitUrl", appRepo.gitUrl());
+        String key = UUID.randomUUID().toString();
+        ContentResponse first = client.POST(buildsUrl()).headers(h -> h.put("Idempotency-Key", key)).body(new FormRequestContent(fields)).send();
+        ContentResponse retry = client.POST(buildsUrl()).headers(h -> h.put("Idempotency-Key", key)).body(new FormRequestContent(fields)).send();
+        ContentResponse other = client.POST(buildsUrl()).headers(h -> h.put("Idempotency-Key", UUID.randomUUID().toString())).body(new FormRequestContent(fields)).send();
+        Fields changed = new Fields();
+        changed.add("gitUrl", appRepo.gitUrl());
+        changed.add("buildParam", "something else");
+        ContentResponse misused = client.POST(buildsUrl()).headers(h -> h.put("Idempotency-Key", key)).body(new FormRequestContent(changed)).send();
+
+        String id = new JSONObject(first.getContentAsString()).getString("id");
+        assertThat(first.getHeaders().get("Idempotent-Replayed"), is(nullValue()));
+        assertThat(retry.getStatus(), is(303));
+        assertThat(retry.getHeaders().get("Idempotent-Replayed"), equalTo("true"));
+        assertThat(new JSONObject(retry.getContentAsString()).getString("id"), equalTo(id));
+        assertThat(new JSONObject(other.getContentAsString()).getString("id"), not(equalTo(id)));
+        assertThat(misused.getStatus(), is(422));
+        waitForBuildToFinish(new JSONObject(other.getContentAsString()), BuildStatus.SUCCESS);
+    }
+
+    @Test
+    public void manyBuildsOfARepoCanBeSubmittedAtOnce() throws Exception {
+        AppRepo appRepo = AppRepo.create("env-vars");
+        JSONObject batch = new JSONObject()
+            .put("gitUrl", appRepo.gitUrl())
+            .put("builds", new JSONArray()
+                .put(new JSONObject().put("branch", "master").put("buildParam", "first"))
+                .put(new JSONObject().put("buildParam", "second")));
+        ContentResponse response = client.POST(buildsUrl().toString() + "/batch")
+            .body(new StringRequestContent("application/json", batch.toString())).send();
+        assertThat(response.getStatus(), is(200));
+        JSONArray builds = new JSONObject(response.getContentAsString()).getJSONArray("builds");
+        assertThat(builds.length(), is(2));
+        for (int i = 0; i < builds.length(); i++) {
+            JSONObject build = waitForBuildToFinish(builds.getJSONObject(i), BuildStatus.SUCCESS);
+            assertThat(build.getString("gitBranch"), equalTo("master"));
+            assertThat(build.getString("logUrl"), equalTo(buildsUrl() + "/" + build.getString("id") + "/log"));
+            assertThat(client.GET(build.getString("logUrl")).getContentAsString(), containsString("Build Log URL: " + build.getString("logUrl")));
+        }
+        assertThat(builds.getJSONObject(1).getString("buildParam"), equalTo("second"));
+    }
+
+    @Test
+    public void batchesWithTooManyBuildsAreRejected() throws Exception {
+        AppRepo appRepo = AppRepo.create("env-vars");
+        JSONArray builds = new JSONArray();
+        for (int i = 0; i <= BuildResource.MAX_BATCH_SIZE; i++) {
+            builds.put(new JSONObject().put("buildParam", "build-" + i));
+        }
+        JSONObject batch = new JSONObject().put("gitUrl", appRepo.gitUrl()).put("builds", builds);
+        ContentResponse response = client.POST(buildsUrl().toString() + "/batch")
+            .body(new StringRequestContent("application/json", batch.toString())).send();
+        assertThat(response.getStatus(), is(400));
+        assertThat(response.getContentAsString(), containsString("A batch can have at most " + BuildResource.MAX_BATCH_SIZE + " builds"));
+    }
+
+    @Test
+    public void metricsAreAvailableAsJson() throws Exception {
+        ContentResponse response = client.GET(app.uri().resolve("/restabuild/api/v1/metrics"));
+        assertThat(response.getStatus(), is(200));
+        JSONObject metrics = new JSONObject(response.getContentAsString());
+        assertThat(metrics.getJSONObject("repoMaintenance").has("collections"), is(true));
+        assertThat(metrics.getJSONObject("buildQueue").getJSONObject("priorities").getJSONObject("HIGH").has("averageWaitMillis"), is(true));
+        assertThat(metrics.getJSONObject("processTrees").getLong("intervalMillis"), is(2000L));
+    }
+
     @Test
     public void canCancelBuilds() throws Exception {
         AppRepo appRepo = AppRepo.create("hung-build");
@@ -204,6 +298,47 @@ public class SystemTest {
         assertEventually(() -> new JSONObject(client.GET(build.getString("url")).getContentAsString()).getString("status"), equalTo("CANCELLED"));
     }
 
+    @Test
+    public void theResourcesUsedByBuildsAreRecorded() throws Exception {
+        AppRepo appRepo = AppRepo.create("hung-build");
+        JSONObject build = new JSONObject(createBuild(appRepo).getContentAsString());
+        URI resourceUrl = URI.create(build.getString("url"));
+        assertEventually(() -> new JSONObject(client.GET(resourceUrl).getContentAsString()).getJSONObject("resources").getLong("samples"), greaterThanOrEqualTo(1L));
+        assertThat(client.POST(URI.create(build.getString("cancelUrl"))).send().getStatus(), is(200));
+        waitForBuildToFinish(build, BuildStatus.CANCELLED);
+
+        JSONObject finished = new JSONObject(client.GET(resourceUrl).getContentAsString());
+        assertThat(finished.getJSONObject("resources").getLong("peakRssBytes"), greaterThan(0L));
+        ContentResponse resources = client.GET(finished.getString("resourcesUrl"));
+        assertThat(resources.getStatus(), is(200));
+        JSONObject samples = new JSONObject(resources.getContentAsString()).getJSONObject("samples");
+        assertThat(samples.getJSONArray("time").length(), greaterThanOrEqualTo(1));
+        assertThat(samples.getJSONArray("rssBytes").length(), equalTo(samples.getJSONArray("time").length()));
+    }
+
+    @Test
+    public void buildsWaitingOnAConcurrencyLimitDoNotHoldUpOtherRepos() throws Exception {
+        AppRepo exclusiveRepo = AppRepo.create("hung-build");
+        Fields fields = new Fields();
+        fields.add("gitUrl", exclusiveRepo.gitUrl());
+        fields.add("maxConcurrent", "1");
+        JSONObject first = new JSONObject(client.FORM(buildsUrl(), fields).getContentAsString());
+        JSONObject second = new JSONObject(client.FORM(buildsUrl(), fields).getContentAsString());
+        assertThat(second.getJSONObject("concurrencyLimit").getInt("max"), is(1));
+        assertEventually(() -> new JSONObject(client.GET(first.getString("url")).getContentAsString()).getString("status"), equalTo("IN_PROGRESS"));
+
+        JSONObject other = new JSONObject(createBuild(AppRepo.create("maven")).getContentAsString());
+        waitForBuildToFinish(other, BuildStatus.SUCCESS);
+        JSONObject waiting = new JSONObject(client.GET(second.getString("url")).getContentAsString());
+        assertThat(waiting.getString("status"), equalTo("QUEUED"));
+        assertThat(waiting.getInt("queuePosition"), is(1));
+        assertThat(waiting.has("estimatedStartAt"), is(true));
+
+        assertThat(client.POST(URI.create(second.getString("cancelUrl"))).send().getStatus(), is(200));
+        assertThat(client.POST(URI.create(first.getString("cancelUrl"))).send().getStatus(), is(200));
+        assertEventually(() -> new JSONObject(client.GET(first.getString("url")).getContentAsString()).getString("status"), equalTo("CANCELLED"));
+    }
+
     @Test
     public void canCancelQueuedBuilds() throws Exception {
         AppRepo appRepo = AppRepo.create("hung-build");
@@ -0,0 +1,103 @@
+package com.danielflower.restabuild;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.util.Fields;
+import org.json.JSONObject;
+import scaffolding.AppRepo;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the threads and memory used with each {@link ThreadMode} while many builds are running and their logs are
+ * being streamed to viewers.
+ * <p>This is a load test rather than a unit test, so it is not run by the build. Run the main method with Java 21 or
+ * later to see virtual threads, optionally passing the number of builds, which defaults to 500. Each build runs a
+ * script that sleeps, so it needs a machine that can run two processes per build.</p>
+ */
+public class ThreadModeLoadComparison {
+
+    public static void main(String[] args) throws Exception {
+        int builds = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        AppRepo repo = AppRepo.create("env-vars");
+        FileUtils.write(new File(repo.originDir, "build.sh"), "#!/bin/bash\nsleep 600\n", StandardCharsets.UTF_8);
+        repo.origin.add().addFilepattern(".").call();
+        repo.origin.commit().setMessage("Sleeping instead of building").call();
+
+        HttpClient client = new HttpClient();
+        client.setFollowRedirects(false);
+        client.setMaxConnectionsPerDestination(builds * 2 + 10);
+        client.start();
+        List<String> results = new ArrayList<>();
+        try {
+            for (ThreadMode mode : ThreadMode.values()) {
+                results.add(run(mode, builds, repo, client));
+            }
+        } finally {
+            client.stop();
+        }
+        System.out.println("Java " + Runtime.version() + " with " + builds + " builds and log viewers:");
+        results.forEach(System.out::println);
+    }
+
+    private static String run(ThreadMode mode, int builds, AppRepo repo, HttpClient client) throws Exception {
+        System.setProperty(Config.SERVER_PORT, "0");
+        System.setProperty(Config.DATA_DIR, "target/load-test");
+        System.setProperty(Config.CONCURRENT_BUILDS, String.valueOf(builds));
+        System.setProperty(Config.PREFETCH_THREADS, "0");
+        System.setProperty(Config.MAINTENANCE_INTERVAL, "0");
+        System.setProperty(Config.THREAD_MODE, mode.name());
+        App app = new App(Config.load(new String[0]));
+        app.start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            URI buildsUrl = app.uri().resolve("/restabuild/api/v1/builds");
+            URI metricsUrl = app.uri().resolve("/restabuild/api/v1/metrics");
+            threads.resetPeakThreadCount();
+            Fields fields = new Fields();
+            fields.add("gitUrl", repo.gitUrl());
+            List<JSONObject> started = new ArrayList<>();
+            for (int i = 0; i < builds; i++) {
+                started.add(new JSONObject(client.FORM(buildsUrl, fields).getContentAsString()));
+            }
+            long deadline = System.currentTimeMillis() + 300_000;
+            while (new JSONObject(client.GET(metricsUrl).getContentAsString()).getJSONObject("buildQueue").getInt("running") < builds
+                && System.currentTimeMillis() < deadline) {
+                Thread.sleep(500);
+            }
+            for (JSONObject build : started) {
+                client.newRequest(build.getString("logUrl")).send(new Response.Listener.Adapter());
+            }
+            Thread.sleep(10_000);
+            System.gc();
+            long heapMB = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+            String result = String.format("%-8s platform threads: %5d  peak: %5d  heap used: %5dMB  resident: %s",
+                mode, threads.getThreadCount(), threads.getPeakThreadCount(), heapMB, residentMemory());
+            for (JSONObject build : started) {
+                client.POST(URI.create(build.getString("cancelUrl"))).send();
+            }
+            return result;
+        } finally {
+            app.shutdown();
+        }
+    }
+
+    private static String residentMemory() throws Exception {
+        File status = new File("/proc/self/status");
+        if (status.isFile()) {
+            for (String line : FileUtils.readLines(status, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring("VmRSS:".length()).trim();
+                }
+            }
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,29 @@
+package com.danielflower.restabuild;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ThreadModeTest {
+
+    @Test
+    public void virtualThreadsAreUsedWhereAvailableAndPlatformThreadsOtherwise() throws Exception {
+        boolean available = Runtime.version().feature() >= 21;
+        for (ThreadMode mode : ThreadMode.values()) {
+            ExecutorService executor = mode.newExecutor();
+            try {
+                Thread thread = executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+                boolean virtual = (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+                assertThat(mode.name(), virtual, is(mode == ThreadMode.VIRTUAL && available));
+            } catch (NoSuchMethodException e) {
+                assertThat("threads before Java 21 cannot be virtual", available, is(false));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.danielflower.restabuild.build;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+import scaffolding.Photocopier;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AdaptiveConcurrencyTest {
+
+    private static final AdaptiveConcurrency.SystemLoad IDLE = new AdaptiveConcurrency.SystemLoad(0.5, 1000, 800);
+
+    @Test
+    public void theLimitGoesUpWhileBuildsAreWaitingAndThereAreIdleCores() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 1, 4, 8, new File("target/no-proc"));
+        concurrency.adjust(IDLE, 2.0, 2, 0, 0);
+        assertThat("nothing is waiting", concurrency.limit(), is(2));
+
+        concurrency.adjust(IDLE, 2.0, 2, 5, 0);
+        assertThat(concurrency.limit(), is(3));
+        concurrency.adjust(IDLE, 3.0, 3, 5, 0);
+        concurrency.adjust(IDLE, 4.0, 4, 5, 0);
+        assertThat("capped at the maximum", concurrency.limit(), is(4));
+
+        JSONObject json = concurrency.toJson();
+        assertThat(json.getLong("increases"), is(2L));
+        assertThat(json.getJSONArray("recentChanges").getJSONObject(0).getString("reason"), equalTo("there are idle cores and memory for another build"));
+    }
+
+    @Test
+    public void theLimitDoesNotGoUpIfAnotherBuildLikeTheRunningOnesWouldOverloadTheCores() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 1, 10, 8, new File("target/no-proc"));
+        // each running build uses 3 cores, so a third would take the machine to 9 of 8 cores
+        concurrency.adjust(new AdaptiveConcurrency.SystemLoad(6.0, 1000, 800), 6.0, 2, 3, 0);
+        assertThat(concurrency.limit(), is(2));
+        assertThat(concurrency.toJson().getJSONObject("lastSample").getString("reason"), containsString("would exceed the target load"));
+    }
+
+    @Test
+    public void theLimitGoesDownWhenOverloadedOrLowOnMemoryButNotBelowTheMinimum() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(3, 2, 10, 4, new File("target/no-proc"));
+        concurrency.adjust(new AdaptiveConcurrency.SystemLoad(6.0, 1000, 800), 3.0, 3, 0, 0);
+        assertThat(concurrency.limit(), is(2));
+        concurrency.adjust(new AdaptiveConcurrency.SystemLoad(1.0, 1000, 50), 1.0, 2, 0, 0);
+        assertThat(concurrency.limit(), is(2));
+        assertThat(concurrency.toJson().getJSONObject("lastSample").getString("reason"), equalTo("only 5% of memory is available"));
+    }
+
+    @Test
+    public void loadAndMemoryAreReadFromProc() throws Exception {
+        File proc = Photocopier.folderForSampleProject("proc");
+        FileUtils.write(new File(proc, "loadavg"), "1.79 1.85 1.77 2/72 11904\n", StandardCharsets.US_ASCII);
+        FileUtils.write(new File(proc, "meminfo"), "MemTotal:        6147400 kB\nMemFree:          656236 kB\nMemAvailable:    5444228 kB\n", StandardCharsets.US_ASCII);
+        AdaptiveConcurrency.SystemLoad load = AdaptiveConcurrency.SystemLoad.read(proc);
+        assertThat(load.loadAverage, is(1.79));
+        assertThat(load.memoryTotalKB, is(6147400L));
+        assertThat(load.memoryAvailableKB, is(5444228L));
+    }
+}
@@ -0,0 +1,63 @@
+package com.danielflower.restabuild.build;
+
+import io.muserver.rest.MuRuntimeDelegate;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.ClientErrorException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThrows;
+
+public class AdmissionControlTest {
+
+    @BeforeClass
+    public static void setupJaxRs() {
+        MuRuntimeDelegate.ensureSet();
+    }
+
+    @Test
+    public void buildsOverAnyLimitAreRejectedWithTooManyRequests() {
+        AdmissionControl admission = new AdmissionControl(5, 2, 3);
+        admission.admit("repo-a", "client-1", 0, 0);
+        admission.queued("repo-a", "client-1");
+        admission.queued("repo-a", "client-2");
+
+        ClientErrorException repoFull = assertThrows(ClientErrorException.class, () -> admission.admit("repo-a", "client-3", 2, 0));
+        assertThat(repoFull.getResponse().getStatus(), is(429));
+        assertThat(repoFull.getResponse().getHeaderString("Retry-After"), is("60"));
+        assertThat(repoFull.getMessage(), startsWith("There are already 2 builds of repo-a queued"));
+
+        admission.queued("repo-b", "client-1");
+        admission.queued("repo-c", "client-1");
+        ClientErrorException clientFull = assertThrows(ClientErrorException.class, () -> admission.admit("repo-d", "client-1", 4, 0));
+        assertThat(clientFull.getResponse().getStatus(), is(429));
+        admission.admit("repo-d", "client-2", 4, 0);
+
+        ClientErrorException queueFull = assertThrows(ClientErrorException.class, () -> admission.admit("repo-d", "client-2", 5, 0));
+        assertThat(queueFull.getMessage(), startsWith("The build queue is full"));
+
+        admission.dequeued("repo-a", "client-1");
+        admission.admit("repo-a", "client-3", 3, 0);
+        assertThat(admission.toJson(0).getLong("rejectedAsRepoFull"), is(1L));
+        assertThat(admission.toJson(0).getLong("rejectedAsClientFull"), is(1L));
+        assertThat(admission.toJson(0).getLong("rejectedAsQueueFull"), is(1L));
+    }
+
+    @Test
+    public void retryAfterIsEstimatedFromHowQuicklyBuildsHaveRecentlyStarted() {
+        AdmissionControl admission = new AdmissionControl(10, 0, 0);
+        assertThat("no history", admission.retryAfterSeconds(1, 1, 0), is(60L));
+
+        // ten builds started over the last 100 seconds
+        for (int i = 1; i <= 10; i++) {
+            admission.started(i * 10000L);
+        }
+        assertThat(admission.retryAfterSeconds(1, 1, 110000), is(10L));
+        assertThat(admission.retryAfterSeconds(3, 1, 110000), is(30L));
+        assertThat("a repo sharing turns with another gets half the starts", admission.retryAfterSeconds(3, 2, 110000), is(60L));
+        assertThat("the rate falls when builds stop starting", admission.retryAfterSeconds(1, 1, 210000), is(20L));
+        assertThat(admission.retryAfterSeconds(10000, 1, 110000), is(3600L));
+    }
+}
@@ -0,0 +1,62 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BuildCacheTest {
+
+    private static final URIish REPO = gitUrl("https://example.org/app.git");
+    private static final String COMMIT = "0123456789abcdef0123456789abcdef01234567";
+
+    @Test
+    public void successfulBuildsAreReusedForTheSameRepoCommitAndParamUntilTheyExpire() {
+        BuildCache cache = new BuildCache(1000, 10);
+        String key = BuildCache.key(REPO, COMMIT, null, Collections.emptyList());
+        cache.record(key, "build-1", "http://localhost/builds/build-1/log", 5000);
+
+        assertThat(cache.lookup(BuildCache.key(REPO, COMMIT, "", Collections.emptyList()), 5500).buildId, equalTo("build-1"));
+        assertThat(cache.lookup(BuildCache.key(REPO, COMMIT, "release", Collections.emptyList()), 5500), is(nullValue()));
+        assertThat(cache.lookup(BuildCache.key(REPO, COMMIT, null, List.of("app")), 5500), is(nullValue()));
+        assertThat(cache.lookup(BuildCache.key(gitUrl("https://example.org/fork/app.git"), COMMIT, null, Collections.emptyList()), 5500), is(nullValue()));
+        assertThat(cache.lookup(key, 6001), is(nullValue()));
+
+        JSONObject json = cache.toJson();
+        assertThat(json.getLong("hits"), is(1L));
+        assertThat(json.getLong("misses"), is(4L));
+        assertThat(json.getLong("expired"), is(1L));
+        assertThat(json.getDouble("hitRate"), is(0.2));
+        assertThat(json.getInt("entries"), is(0));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedResultsAreRemovedWhenFull() {
+        BuildCache cache = new BuildCache(60000, 2);
+        cache.record("a", "build-a", null, 0);
+        cache.record("b", "build-b", null, 0);
+        cache.lookup("a", 1);
+        cache.record("c", "build-c", null, 2);
+        assertThat(cache.lookup("b", 3), is(nullValue()));
+        assertThat(cache.lookup("a", 3).buildId, equalTo("build-a"));
+        assertThat(cache.lookup("c", 3).buildId, equalTo("build-c"));
+
+        BuildCache disabled = new BuildCache(60000, 0);
+        disabled.record("a", "build-a", null, 0);
+        assertThat(disabled.lookup("a", 1), is(nullValue()));
+    }
+
+    private static URIish gitUrl(String url) {
+        try {
+            return new URIish(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
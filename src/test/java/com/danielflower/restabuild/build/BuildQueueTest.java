@@ -0,0 +1,163 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.URIish;
+import org.json.JSONObject;
+import org.junit.Test;
+import scaffolding.AppRepo;
+import scaffolding.TestConfig;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.AssertUtil.assertEventually;
+
+public class BuildQueueTest {
+
+    private final FileSandbox sandbox = TestConfig.testSandbox();
+
+    /**
+     * A queue with no build slots, so nothing ever starts and the queue itself can be inspected
+     */
+    private static BuildQueue queue(SupersedePolicy supersedePolicy) {
+        return queue(supersedePolicy, false);
+    }
+
+    private static BuildQueue queue(SupersedePolicy supersedePolicy, boolean deduplicate) {
+        return new BuildQueue(() -> 0, 30, DeletePolicy.ALWAYS, null, null, null, new AdmissionControl(0, 0, 0),
+            ConcurrencyLimits.none(), QueuePolicy.FAIR, new DurationEstimates(), supersedePolicy, deduplicate, new BuildCache(0, 0));
+    }
+
+    private BuildResult build(String branch, String buildParam) throws Exception {
+        return build(branch, buildParam, null, false);
+    }
+
+    private BuildResult build(String branch, String buildParam, ConcurrencyLimit concurrencyLimit, boolean reuseResult) throws Exception {
+        RepoBranch repoBranch = new RepoBranch(new URIish("https://example.org/app.git"), branch);
+        return new BuildResult(sandbox, repoBranch, buildParam, BuildPriority.NORMAL, concurrencyLimit, reuseResult, UUID.randomUUID().toString(), Collections.emptyMap(), null);
+    }
+
+    @Test
+    public void queuedBuildsAreSupersededByNewerBuildsOfTheSameBranchAndParam() throws Exception {
+        BuildQueue queue = queue(SupersedePolicy.QUEUED);
+        BuildResult first = build("main", null);
+        BuildResult otherBranch = build("feature", null);
+        BuildResult otherParam = build("main", "release");
+        BuildResult second = build("main", "");
+        for (BuildResult build : new BuildResult[] {first, otherBranch, otherParam, second}) {
+            queue.enqueue(build, "client");
+        }
+
+        JSONObject superseded = first.toJson();
+        assertThat(superseded.getString("status"), equalTo("CANCELLED"));
+        assertThat(superseded.getString("supersededBy"), equalTo(second.id));
+        for (BuildResult build : new BuildResult[] {otherBranch, otherParam, second}) {
+            assertThat(build.toJson().getString("status"), equalTo("QUEUED"));
+            assertThat(build.toJson().has("supersededBy"), is(false));
+        }
+        assertThat(queue.status()[0], is(3));
+        assertThat(queue.queueEstimate(second).getInt("queuePosition"), is(3));
+        assertThat(queue.queueEstimate(first), is(nullValue()));
+    }
+
+    @Test
+    public void buildsAreNotSupersededByDefault() throws Exception {
+        BuildQueue queue = queue(SupersedePolicy.NONE);
+        BuildResult first = build("main", null);
+        queue.enqueue(first, "client");
+        queue.enqueue(build("main", null), "client");
+        assertThat(first.toJson().getString("status"), equalTo("QUEUED"));
+        assertThat(queue.status()[0], is(2));
+    }
+
+    @Test
+    public void identicalQueuedBuildsAreMergedWhenDeduplicationIsEnabled() throws Exception {
+        BuildQueue queue = queue(SupersedePolicy.QUEUED, true);
+        BuildResult first = build("main", null);
+        assertThat(queue.enqueue(first, "client"), sameInstance(first));
+        BuildResult duplicate = build("main", "");
+        assertThat(queue.enqueue(duplicate, "other-client"), sameInstance(first));
+        RepoBranch main = first.repoBranch();
+        assertThat(queue.mergeIntoQueued(main, null, BuildPriority.NORMAL, null, false), sameInstance(first));
+        assertThat(queue.mergeIntoQueued(main, null, BuildPriority.HIGH, null, false), is(nullValue()));
+        assertThat(queue.mergeIntoQueued(main, "release", BuildPriority.NORMAL, null, false), is(nullValue()));
+
+        assertThat(first.toJson().getString("status"), equalTo("QUEUED"));
+        assertThat(first.toJson().getInt("duplicateSubmissions"), is(2));
+        assertThat(queue.status()[0], is(1));
+        assertThat(queue.toJson().getLong("duplicatesMerged"), is(2L));
+    }
+
+    @Test
+    public void submissionsAreOnlyMergedIntoBuildsWithTheSameResultReuseAndConcurrencyLimit() throws Exception {
+        BuildQueue queue = queue(SupersedePolicy.NONE, true);
+        BuildResult reusing = build("main", null, null, true);
+        queue.enqueue(reusing, "client");
+        BuildResult notReusing = build("main", null, null, false);
+        assertThat(queue.enqueue(notReusing, "client"), sameInstance(notReusing));
+        assertThat(queue.enqueue(build("main", null, null, true), "client"), sameInstance(reusing));
+
+        BuildResult limited = build("main", null, new ConcurrencyLimit(1, ConcurrencyLimit.Scope.BRANCH), false);
+        assertThat(queue.enqueue(limited, "client"), sameInstance(limited));
+        assertThat(queue.enqueue(build("main", null, new ConcurrencyLimit(1, ConcurrencyLimit.Scope.BRANCH), false), "client"), sameInstance(limited));
+        assertThat(queue.mergeIntoQueued(limited.repoBranch(), null, BuildPriority.NORMAL, new ConcurrencyLimit(1, ConcurrencyLimit.Scope.REPO), false), is(nullValue()));
+        assertThat(queue.mergeIntoQueued(limited.repoBranch(), null, BuildPriority.NORMAL, new ConcurrencyLimit(2, ConcurrencyLimit.Scope.BRANCH), false), is(nullValue()));
+        assertThat(queue.status()[0], is(3));
+    }
+
+    @Test
+    public void mergingIntoAQueuedBuildDiscardsAWorkspaceThatWasAlreadyBeingFetched() throws Exception {
+        BuildQueue queue = queue(SupersedePolicy.NONE, true);
+        BuildResult first = build("main", null);
+        queue.enqueue(first, "client");
+        AtomicInteger prefetchesStarted = new AtomicInteger();
+        Executor prefetchExecutor = task -> {
+            prefetchesStarted.incrementAndGet();
+            task.run();
+        };
+        // with no workspace pool the prefetch fails once started, which leaves the build to fetch for itself
+        first.prefetch(prefetchExecutor, 30, null);
+        first.prefetch(prefetchExecutor, 30, null);
+        assertThat(prefetchesStarted.get(), is(1));
+
+        assertThat(queue.enqueue(build("main", null), "client"), sameInstance(first));
+        first.prefetch(prefetchExecutor, 30, null);
+        assertThat(prefetchesStarted.get(), is(2));
+    }
+
+    @Test
+    public void aLimitSentWithABuildAppliesToRunningBuildsOfTheRepoThatHaveNoLimit() throws Exception {
+        AppRepo repo = AppRepo.create("hung-build");
+        FileUtils.write(new File(repo.originDir, "build.sh"), "#!/bin/bash\nsleep 600\n", StandardCharsets.UTF_8);
+        repo.origin.add().addFilepattern(".").call();
+        repo.origin.commit().setMessage("Sleeping instead of building").call();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        WorkspacePool workspaces = new WorkspacePool(sandbox, 0, false, WorkspaceMaterialization.CLONE, new JGitBackend(), false);
+        BuildQueue queue = new BuildQueue(() -> 2, 30, DeletePolicy.ALWAYS, workspaces, null, null, new AdmissionControl(0, 0, 0),
+            ConcurrencyLimits.none(), QueuePolicy.FAIR, new DurationEstimates(), SupersedePolicy.NONE, false, new BuildCache(0, 0));
+        BuildResult unlimited = new BuildResult(sandbox, repo.toRepoBranch("master"), null, BuildPriority.NORMAL, null, false, UUID.randomUUID().toString(), Collections.emptyMap(), executor);
+        BuildResult exclusive = new BuildResult(sandbox, repo.toRepoBranch("branch-1"), null, BuildPriority.NORMAL, new ConcurrencyLimit(1, ConcurrencyLimit.Scope.REPO), false, UUID.randomUUID().toString(), Collections.emptyMap(), executor);
+        try {
+            queue.enqueue(unlimited, "client");
+            assertEventually(() -> unlimited.toJson().getString("status"), equalTo("IN_PROGRESS"));
+            queue.enqueue(exclusive, "client");
+            assertThat(queue.status()[0], is(1));
+            assertThat(queue.status()[1], is(1));
+
+            unlimited.cancel();
+            assertEventually(() -> exclusive.toJson().getString("status"), equalTo("IN_PROGRESS"));
+        } finally {
+            queue.stop();
+            executor.shutdown();
+        }
+    }
+}
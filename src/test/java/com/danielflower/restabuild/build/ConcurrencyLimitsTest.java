@@ -0,0 +1,37 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThrows;
+
+public class ConcurrencyLimitsTest {
+
+    @Test
+    public void configuredAndRequestedLimitsAreCombinedUsingTheLowest() throws Exception {
+        ConcurrencyLimits limits = ConcurrencyLimits.parse(" https://example.org/releases.git=1, git@example.org:team/app.git#main=3 ,");
+        RepoBranch releases = new RepoBranch(new URIish("https://example.org/releases.git"), "master");
+        RepoBranch appMain = new RepoBranch(new URIish("git@example.org:team/app.git"), "main");
+        RepoBranch appFeature = new RepoBranch(new URIish("git@example.org:team/app.git"), "feature");
+
+        assertThat(limits.limitsFor(releases, null), equalTo(Map.of("https://example.org/releases.git", 1)));
+        assertThat(limits.limitsFor(appMain, null), equalTo(Map.of("git@example.org:team/app.git#main", 3)));
+        assertThat(limits.limitsFor(appFeature, null), equalTo(Map.of()));
+
+        assertThat(limits.limitsFor(appMain, new ConcurrencyLimit(2, ConcurrencyLimit.Scope.BRANCH)),
+            equalTo(Map.of("git@example.org:team/app.git#main", 2)));
+        assertThat(limits.limitsFor(appMain, new ConcurrencyLimit(4, ConcurrencyLimit.Scope.REPO)),
+            equalTo(Map.of("git@example.org:team/app.git#main", 3, "git@example.org:team/app.git", 4)));
+    }
+
+    @Test
+    public void invalidEntriesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimits.parse("https://example.org/releases.git"));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimits.parse("https://example.org/releases.git=0"));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimits.parse("https://example.org/releases.git=one"));
+    }
+}
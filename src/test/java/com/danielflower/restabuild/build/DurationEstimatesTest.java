@@ -0,0 +1,28 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class DurationEstimatesTest {
+
+    @Test
+    public void estimatesFollowRecentBuildsOfTheSameRepoBranchAndParam() throws Exception {
+        DurationEstimates estimates = new DurationEstimates();
+        RepoBranch main = new RepoBranch(new URIish("https://example.org/app.git"), "main");
+        RepoBranch feature = new RepoBranch(new URIish("https://example.org/app.git"), "feature");
+        assertThat("nothing known yet", estimates.estimateMillis(main, null), is(-1L));
+
+        estimates.record(main, null, 10000);
+        estimates.record(main, "release", 100000);
+        assertThat(estimates.estimateMillis(main, null), is(10000L));
+        assertThat(estimates.estimateMillis(main, ""), is(10000L));
+        assertThat(estimates.estimateMillis(main, "release"), is(100000L));
+
+        estimates.record(main, null, 20000);
+        assertThat("moves part of the way to the latest", estimates.estimateMillis(main, null), is(13000L));
+        assertThat("unknown builds use the overall average", estimates.estimateMillis(feature, null), is(31900L));
+    }
+}
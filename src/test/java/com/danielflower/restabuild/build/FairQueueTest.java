@@ -0,0 +1,88 @@
+package com.danielflower.restabuild.build;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FairQueueTest {
+
+    @Test
+    public void reposTakeTurnsSoThatOneWithManyBuildsDoesNotStarveTheOthers() {
+        FairQueue<String> queue = new FairQueue<>();
+        for (int i = 1; i <= 200; i++) {
+            queue.add("busy-" + i, BuildPriority.NORMAL, "busy");
+        }
+        assertThat(queue.poll(), equalTo("busy-1"));
+        assertThat(queue.poll(), equalTo("busy-2"));
+        queue.add("quiet-1", BuildPriority.NORMAL, "quiet");
+        queue.add("quiet-2", BuildPriority.NORMAL, "quiet");
+        queue.add("other-1", BuildPriority.NORMAL, "other");
+
+        assertThat(pollAll(queue).subList(0, 7), contains("busy-3", "quiet-1", "other-1", "busy-4", "quiet-2", "busy-5", "busy-6"));
+    }
+
+    @Test
+    public void higherPriorityClassesAlwaysGoFirst() {
+        FairQueue<String> queue = new FairQueue<>();
+        queue.add("low", BuildPriority.LOW, "a");
+        queue.add("normal-a", BuildPriority.NORMAL, "a");
+        queue.add("normal-b", BuildPriority.NORMAL, "b");
+        queue.add("high", BuildPriority.HIGH, "b");
+        List<String> order = new ArrayList<>();
+        queue.forEach(order::add);
+        assertThat(order, contains("high", "normal-a", "normal-b", "low"));
+        assertThat(pollAll(queue), equalTo(order));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void itemsCanBeRemovedFromAnywhere() {
+        FairQueue<String> queue = new FairQueue<>();
+        queue.add("a-1", BuildPriority.NORMAL, "a");
+        queue.add("a-2", BuildPriority.NORMAL, "a");
+        queue.add("b-1", BuildPriority.NORMAL, "b");
+        queue.add("b-1", BuildPriority.NORMAL, "b");
+        assertThat(queue.size(), is(3));
+
+        assertThat(queue.remove("a-1"), is(true));
+        assertThat(queue.remove("a-1"), is(false));
+        assertThat(queue.size(), is(2));
+        assertThat(pollAll(queue), contains("b-1", "a-2"));
+    }
+
+    @Test
+    public void itemsThatCannotBeTakenYetDoNotHoldUpTheOnesBehindThem() {
+        FairQueue<String> queue = new FairQueue<>();
+        queue.add("a-1", BuildPriority.NORMAL, "a");
+        queue.add("a-2", BuildPriority.NORMAL, "a");
+        queue.add("b-1", BuildPriority.NORMAL, "b");
+        assertThat(queue.poll(item -> !item.startsWith("a")), equalTo("b-1"));
+        assertThat(queue.poll(item -> !item.startsWith("a")), is(nullValue()));
+        assertThat(pollAll(queue), contains("a-1", "a-2"));
+    }
+
+    @Test
+    public void shortestExpectedFirstPrefersQuickItemsButAgesTheLongOnes() {
+        FairQueue<String> queue = new FairQueue<>(QueuePolicy.SHORTEST_EXPECTED_FIRST);
+        queue.add("long", BuildPriority.NORMAL, "a", 600000, 0);
+        queue.add("quick", BuildPriority.NORMAL, "a", 30000, 1000);
+        queue.add("medium", BuildPriority.NORMAL, "b", 120000, 2000);
+        // arrives after the long item has waited longer than their difference in expected duration
+        queue.add("late-quick", BuildPriority.NORMAL, "b", 30000, 590000);
+        queue.add("urgent", BuildPriority.HIGH, "c", 900000, 600000);
+        assertThat(pollAll(queue), contains("urgent", "quick", "medium", "long", "late-quick"));
+    }
+
+    private static List<String> pollAll(FairQueue<String> queue) {
+        List<String> polled = new ArrayList<>();
+        String item;
+        while ((item = queue.poll()) != null) {
+            polled.add(item);
+        }
+        return polled;
+    }
+}
@@ -0,0 +1,105 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.URIish;
+import scaffolding.Photocopier;
+import scaffolding.TestConfig;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares how long it takes to find the tags of commits with and without the tag index, and to create workspaces
+ * with each {@link WorkspaceMaterialization} and {@link GitBackend}.
+ * <p>This is a benchmark rather than a unit test, so it is not run by the build. Run the main method, optionally
+ * passing the number of files in the repo to create workspaces of, which defaults to 5000.</p>
+ */
+public class GitPerformanceComparison {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        compareTagLookups(100, 10);
+        URIish gitUrl = RemoteGitRepoTest.createRepoWithManyFiles(fileCount);
+        compareMaterializations(gitUrl, fileCount);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            compareBackends(gitUrl, fileCount, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void compareTagLookups(int commitCount, int tagsPerCommit) throws Exception {
+        try (Git git = Git.init().setDirectory(Photocopier.folderForSampleProject("many-tags")).call()) {
+            List<ObjectId> commits = RemoteGitRepoTest.createTaggedCommits(git, commitCount, tagsPerCommit);
+
+            long start = System.nanoTime();
+            for (ObjectId commit : commits) {
+                RemoteGitRepoTest.scanAllTagsFor(git, commit);
+            }
+            long scanNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Map<ObjectId, List<String>> index = RemoteGitRepo.tagsByCommit(git);
+            for (ObjectId commit : commits) {
+                index.getOrDefault(commit, Collections.emptyList());
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            System.out.println("Finding tags of " + commitCount + " commits in a repo with " + (commitCount * tagsPerCommit)
+                + " tags took " + (scanNanos / 1000000) + "ms by scanning all tags per commit and "
+                + (indexNanos / 1000000) + "ms with the tag index");
+        }
+    }
+
+    private static void compareMaterializations(URIish gitUrl, int fileCount) throws Exception {
+        RemoteGitRepo repo = RemoteGitRepo.create(gitUrl, TestConfig.testSandbox(), new JGitBackend());
+        long cloneNanos = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.CLONE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE).close();
+            cloneNanos += System.nanoTime() - start;
+        }
+
+        long start = System.nanoTime();
+        repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.COPY_ON_WRITE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE).close();
+        long firstCopyNanos = System.nanoTime() - start;
+
+        long copyNanos = 0;
+        for (int i = 0; i < RUNS; i++) {
+            start = System.nanoTime();
+            repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.COPY_ON_WRITE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE).close();
+            copyNanos += System.nanoTime() - start;
+        }
+
+        System.out.println("Creating a workspace of " + fileCount + " files took an average of " + (cloneNanos / RUNS / 1000000)
+            + "ms with a JGit clone and " + (copyNanos / RUNS / 1000000) + "ms when copied from a pristine checkout, after "
+            + (firstCopyNanos / 1000000) + "ms to create the pristine checkout");
+    }
+
+    private static void compareBackends(URIish gitUrl, int fileCount, ExecutorService executor) throws Exception {
+        for (GitBackend backend : Arrays.asList(new JGitBackend(), new NativeGitBackend("git", executor))) {
+            RemoteGitRepo repo = RemoteGitRepo.create(gitUrl, TestConfig.testSandbox(), backend);
+            long start = System.nanoTime();
+            repo.fetch(System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE);
+            long fetchNanos = System.nanoTime() - start;
+
+            long cloneNanos = 0;
+            for (int i = 0; i < RUNS; i++) {
+                start = System.nanoTime();
+                repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.CLONE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE).close();
+                cloneNanos += System.nanoTime() - start;
+            }
+            System.out.println("With " + backend + ", cloning a repo of " + fileCount + " files into the local bare repo took "
+                + (fetchNanos / 1000000) + "ms and creating a workspace from it took an average of " + (cloneNanos / RUNS / 1000000) + "ms");
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.danielflower.restabuild.build;
+
+/**
+ * Runs all the project manager tests with the git command line tool instead of JGit.
+ */
+public class NativeGitProjectManagerTest extends ProjectManagerTest {
+
+    @Override
+    protected GitBackend gitBackend() {
+        return new NativeGitBackend("git", executor);
+    }
+}
@@ -0,0 +1,31 @@
+package com.danielflower.restabuild.build;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assume.assumeTrue;
+
+public class ProcessGroupTest {
+
+    @Test
+    public void theBuildProcessRunsUntilItsScriptFinishesEvenIfSetsidHasToFork() throws Exception {
+        assumeTrue(ProcessGroup.supported());
+        // the outer setsid makes the process a group leader, so the one added for the build has to fork
+        List<String> command = new ArrayList<>();
+        command.add("setsid");
+        command.addAll(ProcessGroup.command(List.of("bash", "-c", "sleep 2; echo finished; exit 3")));
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        assertThat(p.waitFor(1, TimeUnit.SECONDS), is(false));
+        assertThat(p.waitFor(20, TimeUnit.SECONDS), is(true));
+        assertThat(p.exitValue(), is(3));
+        assertThat(new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8), equalTo("finished\n"));
+    }
+}
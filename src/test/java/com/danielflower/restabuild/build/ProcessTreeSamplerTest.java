@@ -0,0 +1,65 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+import scaffolding.AppRepo;
+import scaffolding.TestConfig;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.AssertUtil.assertEventually;
+
+public class ProcessTreeSamplerTest {
+
+    private final FileSandbox sandbox = TestConfig.testSandbox();
+
+    @Test
+    public void buildsShowTheLastSnapshotOfTheirProcessTreeUntilTheyEnd() throws Exception {
+        AppRepo repo = AppRepo.create("hung-build");
+        FileUtils.write(new File(repo.originDir, "build.sh"), "#!/bin/bash\nsleep 600\n", StandardCharsets.UTF_8);
+        repo.origin.add().addFilepattern(".").call();
+        repo.origin.commit().setMessage("Sleeping instead of building").call();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        WorkspacePool workspaces = new WorkspacePool(sandbox, 0, false, WorkspaceMaterialization.CLONE, new JGitBackend(), false);
+        BuildQueue queue = new BuildQueue(() -> 1, 30, DeletePolicy.ALWAYS, workspaces, null, null, new AdmissionControl(0, 0, 0),
+            ConcurrencyLimits.none(), QueuePolicy.FAIR, new DurationEstimates(), SupersedePolicy.NONE, false, new BuildCache(0, 0));
+        BuildResult build = new BuildResult(sandbox, repo.toRepoBranch("master"), null, BuildPriority.NORMAL, null, false, UUID.randomUUID().toString(), Collections.emptyMap(), executor);
+        ProcessTreeSampler sampler = new ProcessTreeSampler(1000);
+        try {
+            queue.enqueue(build, "client");
+            assertEventually(build::pid, greaterThan(0L));
+            assertThat("nothing is shown until a snapshot is taken", build.toJson().has("processTree"), is(false));
+
+            List<BuildResult> running = queue.runningBuilds();
+            sampler.sample(running);
+            JSONObject tree = build.toJson().getJSONObject("processTree");
+            assertThat(tree.getLong("pid"), is(build.pid()));
+            assertThat("the snapshot is served rather than a new one being taken",
+                build.toJson().getJSONObject("processTree").toString(), equalTo(tree.toString()));
+            assertThat(sampler.toJson().getLong("samples"), is(1L));
+            assertThat(sampler.toJson().getLong("treesSampled"), is(1L));
+
+            build.cancel();
+            assertEventually(() -> build.toJson().getString("status"), equalTo("CANCELLED"));
+            assertThat(build.toJson().has("processTree"), is(false));
+            assertThat(build.sampleProcessTree(), is(false));
+            sampler.sample(running);
+            assertThat(build.toJson().has("processTree"), is(false));
+            assertThat(sampler.toJson().getLong("samples"), is(2L));
+            assertThat(sampler.toJson().getLong("treesSampled"), is(1L));
+        } finally {
+            queue.stop();
+            executor.shutdown();
+        }
+    }
+}
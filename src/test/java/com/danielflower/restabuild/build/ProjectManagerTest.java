@@ -1,8 +1,13 @@
 package com.danielflower.restabuild.build;
 
+import com.danielflower.restabuild.FileSandbox;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.StringBuilderWriter;
+import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.junit.After;
@@ -13,6 +18,7 @@ import scaffolding.TestConfig;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -26,13 +32,24 @@ public class ProjectManagerTest {
 
     private final AppRepo appRepo = AppRepo.create("maven");
     private final int defaultTimeout = 30000;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    protected final ExecutorService executor = Executors.newCachedThreadPool();
     private final DeletePolicy instanceDirDeletePolicy = DeletePolicy.ON_SUCCESS;
     private final AtomicReference<BuildStatus> endStatus = new AtomicReference<>(null);
     private final BuildProcessListener endStatusSetter = (buildProcess, oldStatus, newStatus) -> {
         endStatus.set(newStatus);
     };
 
+    /**
+     * @return The git backend the tests are run against, which subclasses can change
+     */
+    protected GitBackend gitBackend() {
+        return new JGitBackend();
+    }
+
+    private WorkspacePool workspacePool(int maxIdlePerRepo, boolean keepIgnoredFiles, WorkspaceMaterialization materialization) {
+        return new WorkspacePool(TestConfig.testSandbox(), maxIdlePerRepo, keepIgnoredFiles, materialization, gitBackend(), true);
+    }
+
     @After
     public void shutdown() {
         assertThat(executor.shutdownNow(), empty());
@@ -60,7 +77,7 @@ public class ProjectManagerTest {
 
     @NotNull
     private BuildProcess startProcess(StringBuilderWriter buildLog, RepoBranch repoBranch) {
-        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, repoBranch, TestConfig.testSandbox(), instanceDirDeletePolicy);
+        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, repoBranch, workspacePool(0, false, WorkspaceMaterialization.CLONE), instanceDirDeletePolicy, null);
         buildProcess.start();
         return buildProcess;
     }
@@ -131,6 +148,199 @@ public class ProjectManagerTest {
         assertThat(buildLogBranch1Again.toString(),  containsString("The build could not read 1 project"));
     }
 
+    @Test
+    public void workspacesPreparedWhileQueuedAreUsedByTheBuild() throws Exception {
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        RepoBranch repoBranch = appRepo.toRepoBranch("master");
+        WorkspacePool workspaces = workspacePool(0, false, WorkspaceMaterialization.CLONE);
+        WorkspacePrefetch prefetch = WorkspacePrefetch.start(Runnable::run, repoBranch, workspaces, defaultTimeout);
+        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, repoBranch, workspaces, instanceDirDeletePolicy, prefetch);
+        buildProcess.start();
+
+        assertEventually(endStatus::get, equalTo(BuildStatus.SUCCESS));
+        assertThat(buildLog.toString(), containsString("Fetching latest changes from git while the build is queued..."));
+        assertThat(buildLog.toString(), containsString("Using the workspace that was prepared while the build was queued"));
+        assertThat(buildLog.toString(), containsString("BUILD SUCCESS"));
+    }
+
+    @Test
+    public void discardedPrefetchesDeleteTheirWorkspaces() throws Exception {
+        WorkspacePrefetch prefetch = WorkspacePrefetch.start(Runnable::run, appRepo.toRepoBranch("master"), workspacePool(0, false, WorkspaceMaterialization.CLONE), defaultTimeout);
+        StringBuilderWriter unused = new StringBuilderWriter();
+        prefetch.discard();
+        assertThat(prefetch.take(unused, defaultTimeout), is(nullValue()));
+    }
+
+    @Test
+    public void pooledWorkspacesAreResetAndReusedByLaterBuilds() throws Exception {
+        WorkspacePool workspaces = workspacePool(1, true, WorkspaceMaterialization.CLONE);
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        BuildProcess first = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("master"), workspaces, instanceDirDeletePolicy, null);
+        first.start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.SUCCESS));
+        assertThat("pooled workspace kept", first.workDir().isDirectory(), is(true));
+        File untracked = new File(first.workDir(), "untracked.txt");
+        FileUtils.write(untracked, "Left behind by the build", StandardCharsets.UTF_8);
+        File ignored = new File(first.workDir(), "target/kept.txt");
+        FileUtils.write(ignored, "Build output", StandardCharsets.UTF_8);
+
+        breakTheProject(appRepo, "branch-1");
+
+        endStatus.set(null);
+        StringBuilderWriter secondLog = new StringBuilderWriter();
+        BuildProcess second = new BuildProcess(endStatusSetter, secondLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("branch-1"), workspaces, instanceDirDeletePolicy, null);
+        second.start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.FAILURE));
+        assertThat(secondLog.toString(), containsString("Reusing the workspace of a previous build"));
+        assertThat(secondLog.toString(), containsString("The build could not read 1 project"));
+        assertThat(second.workDir(), equalTo(first.workDir()));
+        assertThat("untracked file cleaned", untracked.exists(), is(false));
+        assertThat("ignored file kept", ignored.isFile(), is(true));
+    }
+
+    @Test
+    public void workspacesCanBeCopiedFromPristineCheckouts() throws Exception {
+        WorkspacePool workspaces = workspacePool(0, false, WorkspaceMaterialization.COPY_ON_WRITE);
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        BuildProcess first = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("master"), workspaces, DeletePolicy.NEVER, null);
+        first.start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.SUCCESS));
+        assertThat(buildLog.toString(), containsString("BUILD SUCCESS"));
+        assertThat(first.createdTags(), contains("my-maven-app-1.0.0"));
+
+        endStatus.set(null);
+        StringBuilderWriter branchLog = new StringBuilderWriter();
+        BuildProcess second = new BuildProcess(endStatusSetter, branchLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("branch-1"), workspaces, DeletePolicy.NEVER, null);
+        second.start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.SUCCESS));
+        assertThat(second.workDir(), not(equalTo(first.workDir())));
+        try (Git copy = Git.open(second.workDir())) {
+            assertThat(copy.getRepository().getBranch(), equalTo("branch-1"));
+            assertThat(copy.getRepository().getConfig().getString("remote", "origin", "url"), equalTo(appRepo.toRepoBranch("branch-1").url.toString()));
+            assertThat("tags pushed by the first build are fetched", copy.getRepository().exactRef("refs/tags/my-maven-app-1.0.0"), is(notNullValue()));
+        }
+
+        breakTheProject(appRepo, "branch-1");
+
+        endStatus.set(null);
+        StringBuilderWriter badBuildLog = new StringBuilderWriter();
+        new BuildProcess(endStatusSetter, badBuildLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("branch-1"), workspaces, DeletePolicy.NEVER, null).start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.FAILURE));
+        assertThat(badBuildLog.toString(), containsString("The build could not read 1 project"));
+    }
+
+    @Test
+    public void sparseCheckoutsOnlyContainTheRootFilesAndTheRequestedDirectories() throws Exception {
+        WorkspacePool workspaces = workspacePool(1, false, WorkspaceMaterialization.CLONE);
+        RepoBranch master = appRepo.toRepoBranch("master");
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        try (Git git = workspaces.acquire(new RepoBranch(master.url, "master", Collections.singletonList("src/main/java")), defaultTimeout, NullProgressMonitor.INSTANCE, buildLog)) {
+            File workDir = git.getRepository().getWorkTree();
+            assertThat(buildLog.toString(), containsString("Creating a sparse checkout of src/main/java"));
+            assertThat(new File(workDir, "pom.xml").isFile(), is(true));
+            assertThat(new File(workDir, "src/main/java/samples/App.java").isFile(), is(true));
+            assertThat(new File(workDir, "src/main/resources").exists(), is(false));
+            assertThat(git.getRepository().getBranch(), equalTo("master"));
+            assertThat("files that are not checked out are not seen as deleted", git.status().call().getMissing(), empty());
+            assertThat("sparse workspaces are not pooled", workspaces.release(master.url, workDir, BuildStatus.SUCCESS), is(false));
+        }
+
+        FileUtils.write(new File(appRepo.originDir, RemoteGitRepo.SPARSE_CHECKOUT_FILE), "# Only the web resources are needed\n/src/main/resources/web/\n", StandardCharsets.UTF_8);
+        appRepo.origin.add().addFilepattern(".").call();
+        appRepo.origin.commit().setMessage("Adding sparse checkout paths").call();
+
+        StringBuilderWriter secondLog = new StringBuilderWriter();
+        try (Git git = workspaces.acquire(master, defaultTimeout, NullProgressMonitor.INSTANCE, secondLog)) {
+            File workDir = git.getRepository().getWorkTree();
+            assertThat(secondLog.toString(), containsString("Creating a sparse checkout of src/main/resources/web"));
+            assertThat(new File(workDir, "src/main/resources/web/index.html").isFile(), is(true));
+            assertThat("files in parent directories are included, as with git's cone mode", new File(workDir, "src/main/resources/logback.xml").isFile(), is(true));
+            assertThat(new File(workDir, "src/main/java").exists(), is(false));
+            assertThat(git.status().call().getMissing(), empty());
+        }
+    }
+
+    @Test
+    public void buildsAreKilledAsSoonAsTheirTimeoutPasses() throws Exception {
+        FileUtils.write(new File(appRepo.originDir, "build.sh"), "#!/bin/bash\nsleep 600\n", StandardCharsets.UTF_8);
+        appRepo.origin.add().addFilepattern(".").call();
+        appRepo.origin.commit().setMessage("Sleeping instead of building").call();
+
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        long start = System.currentTimeMillis();
+        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, 3000, System.getenv(), null, appRepo.toRepoBranch("master"), workspacePool(0, false, WorkspaceMaterialization.CLONE), instanceDirDeletePolicy, null);
+        buildProcess.start();
+        assertEventually(endStatus::get, equalTo(BuildStatus.TIMED_OUT));
+        assertThat(System.currentTimeMillis() - start, lessThan(10000L));
+        assertThat(buildLog.toString(), containsString("Build timed out after 3000ms"));
+        assertThat(buildProcess.currentProcessTree().isAlive(), is(false));
+    }
+
+    @Test
+    public void cancellingABuildStopsAllItsProcessesAtOnce() throws Exception {
+        FileUtils.write(new File(appRepo.originDir, "build.sh"), "#!/bin/bash\nfor i in 1 2 3 4 5; do sleep 600 & done\nwait\n", StandardCharsets.UTF_8);
+        appRepo.origin.add().addFilepattern(".").call();
+        appRepo.origin.commit().setMessage("Starting workers").call();
+
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), null, appRepo.toRepoBranch("master"), workspacePool(0, false, WorkspaceMaterialization.CLONE), instanceDirDeletePolicy, null);
+        buildProcess.start();
+        assertEventually(() -> buildProcess.currentProcessTree().children, hasSize(5));
+        ProcessTree workers = buildProcess.currentProcessTree();
+
+        buildProcess.cancel(BuildStatus.CANCELLED);
+        assertEventually(endStatus::get, equalTo(BuildStatus.CANCELLED));
+        assertThat(buildProcess.cancelLatencyMillis(), allOf(greaterThanOrEqualTo(0L), lessThan(5000L)));
+        assertThat(buildLog.toString(), containsString("Build processes stopped " + buildProcess.cancelLatencyMillis() + "ms after the build was cancelled"));
+        for (ProcessTree worker : workers.children) {
+            // an exited process is still seen as alive until it is reaped
+            assertEventually(worker::isAlive, is(false));
+        }
+    }
+
+    @Test
+    public void buildsSubmittedTogetherShareOneFetch() throws Exception {
+        WorkspacePool workspaces = workspacePool(0, false, WorkspaceMaterialization.CLONE);
+        RepoBranch master = appRepo.toRepoBranch("master");
+        RepoBranch submittedTogether = new RepoBranch(master.url, "master", Collections.emptyList(), System.currentTimeMillis());
+        ObjectId submittedCommit;
+        try (Git git = workspaces.acquire(submittedTogether, defaultTimeout, NullProgressMonitor.INSTANCE, new StringBuilderWriter())) {
+            submittedCommit = git.getRepository().resolve(Constants.HEAD);
+        }
+
+        breakTheProject(appRepo, "master");
+        try (Git git = workspaces.acquire(submittedTogether, defaultTimeout, NullProgressMonitor.INSTANCE, new StringBuilderWriter())) {
+            assertThat("the changes were already fetched for the first build", git.getRepository().resolve(Constants.HEAD), equalTo(submittedCommit));
+        }
+        try (Git git = workspaces.acquire(master, defaultTimeout, NullProgressMonitor.INSTANCE, new StringBuilderWriter())) {
+            assertThat(git.getRepository().resolve(Constants.HEAD), not(equalTo(submittedCommit)));
+        }
+    }
+
+    @Test
+    public void submodulesAreCheckedOutFromTheirOwnLocalRepos() throws Exception {
+        AppRepo library = AppRepo.create("tagger");
+        ObjectId libraryCommit = library.origin.getRepository().resolve(Constants.HEAD);
+        appRepo.origin.submoduleAdd().setPath("libs/tagger").setURI(library.gitUrl()).call().close();
+        appRepo.origin.commit().setMessage("Adding a submodule").call();
+
+        FileSandbox sandbox = TestConfig.testSandbox();
+        WorkspacePool workspaces = new WorkspacePool(sandbox, 0, false, WorkspaceMaterialization.CLONE, gitBackend(), true);
+        StringBuilderWriter buildLog = new StringBuilderWriter();
+        try (Git git = workspaces.acquire(appRepo.toRepoBranch("master"), defaultTimeout, NullProgressMonitor.INSTANCE, buildLog)) {
+            assertThat(buildLog.toString(), containsString("Checking out submodule libs/tagger at " + libraryCommit.name()));
+            File submoduleDir = new File(git.getRepository().getWorkTree(), "libs/tagger");
+            assertThat(new File(submoduleDir, "build.sh").isFile(), is(true));
+            try (Git submodule = Git.open(submoduleDir)) {
+                assertThat(submodule.getRepository().resolve(Constants.HEAD), equalTo(libraryCommit));
+                assertThat(submodule.getRepository().getConfig().getString("remote", "origin", "url"), equalTo(new URIish(library.gitUrl()).toString()));
+            }
+            assertThat(git.status().call().isClean(), is(true));
+        }
+        File libraryRepoDir = RemoteGitRepo.localRepoDir(new URIish(library.gitUrl()), sandbox);
+        assertThat("submodule has its own cached repo", new File(libraryRepoDir, "objects").isDirectory(), is(true));
+    }
+
     @Test
     public void canFailBuildIfBranchDoesnotExist() throws Exception {
         StringBuilderWriter buildLog = new StringBuilderWriter();
@@ -142,7 +352,7 @@ public class ProjectManagerTest {
     @Test
     public void canBuildProjectsWithParameter() throws Exception {
         StringBuilderWriter buildLog = new StringBuilderWriter();
-        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), "\tTest  Parameter\n", appRepo.toRepoBranch("master"), TestConfig.testSandbox(), instanceDirDeletePolicy);
+        BuildProcess buildProcess = new BuildProcess(endStatusSetter, buildLog, executor, defaultTimeout, System.getenv(), "\tTest  Parameter\n", appRepo.toRepoBranch("master"), workspacePool(0, false, WorkspaceMaterialization.CLONE), instanceDirDeletePolicy, null);
         buildProcess.start();
 
         assertEventually(endStatus::get, equalTo(BuildStatus.SUCCESS));
@@ -0,0 +1,137 @@
+package com.danielflower.restabuild.build;
+
+import io.muserver.Mutils;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+import scaffolding.Photocopier;
+import scaffolding.TestConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RemoteGitRepoTest {
+
+    @Test
+    public void tagIndexFindsTheSameTagsAsScanningEveryTagPerCommit() throws Exception {
+        int tagsPerCommit = 4;
+        try (Git git = Git.init().setDirectory(Photocopier.folderForSampleProject("many-tags")).call()) {
+            List<ObjectId> commits = createTaggedCommits(git, 10, tagsPerCommit);
+            Map<ObjectId, List<String>> index = RemoteGitRepo.tagsByCommit(git);
+            for (ObjectId commit : commits) {
+                assertThat(index.get(commit), hasSize(tagsPerCommit));
+                assertThat(index.get(commit), containsInAnyOrder(scanAllTagsFor(git, commit).toArray()));
+            }
+        }
+    }
+
+    @Test
+    public void copyOnWriteWorkspacesHaveTheSameContentAsClones() throws Exception {
+        URIish gitUrl = createRepoWithManyFiles(500);
+        RemoteGitRepo repo = RemoteGitRepo.create(gitUrl, TestConfig.testSandbox(), new JGitBackend());
+        File cloned;
+        try (Git git = repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.CLONE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE)) {
+            cloned = git.getRepository().getWorkTree();
+        }
+        // the first copy-on-write workspace creates the pristine checkout, and the second is copied from it
+        repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.COPY_ON_WRITE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE).close();
+        File copied;
+        try (Git git = repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.COPY_ON_WRITE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE)) {
+            copied = git.getRepository().getWorkTree();
+            assertThat(git.status().call().isClean(), is(true));
+        }
+
+        assertThat(workingTreeFiles(copied), equalTo(workingTreeFiles(cloned)));
+        assertThat(FileUtils.readFileToString(new File(copied, "dir-1/file-7.txt"), StandardCharsets.UTF_8), equalTo("File 7 in dir 1\n"));
+    }
+
+    @Test
+    public void nativeGitCreatesTheSameWorkspacesAsJGit() throws Exception {
+        URIish gitUrl = createRepoWithManyFiles(500);
+        List<File> created = new ArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (GitBackend backend : Arrays.asList(new JGitBackend(), new NativeGitBackend("git", executor))) {
+                RemoteGitRepo repo = RemoteGitRepo.create(gitUrl, TestConfig.testSandbox(), backend);
+                try (Git git = repo.pullFromGitAndCopyWorkingCopyToNewDir("master", Collections.emptyList(), WorkspaceMaterialization.CLONE, System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE)) {
+                    assertThat(git.getRepository().getBranch(), equalTo("master"));
+                    assertThat(git.getRepository().getConfig().getString("remote", "origin", "url"), equalTo(gitUrl.toString()));
+                    created.add(git.getRepository().getWorkTree());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(workingTreeFiles(created.get(0)), equalTo(workingTreeFiles(created.get(1))));
+    }
+
+    /**
+     * @return The commits, each of which has the given number of tags, half of which are annotated
+     */
+    static List<ObjectId> createTaggedCommits(Git git, int commitCount, int tagsPerCommit) throws Exception {
+        List<ObjectId> commits = new ArrayList<>();
+        for (int i = 0; i < commitCount; i++) {
+            RevCommit commit = git.commit().setAllowEmpty(true).setMessage("Commit " + i).call();
+            commits.add(commit.getId());
+            for (int j = 0; j < tagsPerCommit; j++) {
+                boolean annotated = j % 2 == 0;
+                git.tag().setName("tag-" + i + "-" + j).setAnnotated(annotated).setMessage(annotated ? "Tag " + j : null).call();
+            }
+        }
+        return commits;
+    }
+
+    static URIish createRepoWithManyFiles(int fileCount) throws Exception {
+        File originDir = Photocopier.folderForSampleProject("many-files");
+        try (Git origin = Git.init().setDirectory(originDir).call()) {
+            for (int i = 0; i < fileCount; i++) {
+                FileUtils.write(new File(originDir, "dir-" + (i / 250) + "/file-" + (i % 250) + ".txt"), "File " + (i % 250) + " in dir " + (i / 250) + "\n", StandardCharsets.UTF_8);
+            }
+            origin.add().addFilepattern(".").call();
+            origin.commit().setMessage("Lots of files").call();
+        }
+        return new URIish(originDir.toURI().toString());
+    }
+
+    static List<String> workingTreeFiles(File workTree) {
+        Path root = workTree.toPath();
+        return FileUtils.listFiles(workTree, null, true).stream()
+            .map(f -> root.relativize(f.toPath()).toString())
+            .filter(name -> !name.startsWith(".git"))
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * The approach used before the tag index, which lists and peels every tag for each commit
+     */
+    static List<String> scanAllTagsFor(Git git, ObjectId commitID) throws Exception {
+        RefDatabase refDatabase = git.getRepository().getRefDatabase();
+        return git.tagList().call()
+            .stream()
+            .map(tag -> {
+                try {
+                    return refDatabase.peel(tag);
+                } catch (IOException e) {
+                    return null;
+                }
+            })
+            .filter(tag -> tag != null && Mutils.coalesce(tag.getPeeledObjectId(), tag.getObjectId()).equals(commitID))
+            .map(tag -> tag.getName().substring(tag.getName().lastIndexOf('/') + 1))
+            .collect(Collectors.toList());
+    }
+}
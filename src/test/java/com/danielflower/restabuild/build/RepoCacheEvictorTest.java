@@ -0,0 +1,55 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+import scaffolding.AppRepo;
+import scaffolding.TestConfig;
+
+import java.io.File;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RepoCacheEvictorTest {
+
+    private final FileSandbox sandbox = TestConfig.testSandbox();
+
+    @Test
+    public void leastRecentlyUsedReposAreEvictedUntilUnderBudget() throws Exception {
+        File oldest = fetch(AppRepo.create("maven").toRepoBranch("master").url, 3000);
+        File middle = fetch(AppRepo.create("maven").toRepoBranch("master").url, 2000);
+        File newest = fetch(AppRepo.create("maven").toRepoBranch("master").url, 1000);
+        long maxBytes = FileUtils.sizeOfDirectory(newest) + FileUtils.sizeOfDirectory(middle);
+
+        RepoCacheEvictor evictor = new RepoCacheEvictor(sandbox, maxBytes, Set::of);
+        assertThat(evictor.evict(), contains(oldest));
+        assertThat(oldest.exists(), is(false));
+        assertThat(middle.isDirectory(), is(true));
+        assertThat(newest.isDirectory(), is(true));
+        assertThat(evictor.toJson().getLong("evictions"), is(1L));
+    }
+
+    @Test
+    public void reposInUseAreNotEvicted() throws Exception {
+        URIish inUse = AppRepo.create("maven").toRepoBranch("master").url;
+        File oldest = fetch(inUse, 3000);
+        File newest = fetch(AppRepo.create("maven").toRepoBranch("master").url, 1000);
+
+        RepoCacheEvictor evictor = new RepoCacheEvictor(sandbox, 1, () -> Set.of(inUse));
+        assertThat(evictor.evict(), contains(newest));
+        assertThat(oldest.isDirectory(), is(true));
+    }
+
+    private File fetch(URIish gitUrl, long millisSinceLastUse) throws Exception {
+        RemoteGitRepo repo = RemoteGitRepo.create(gitUrl, sandbox, new JGitBackend());
+        repo.fetch(System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE);
+        File dir = repo.repoDir();
+        File marker = new File(dir, RemoteGitRepo.LAST_USED_MARKER);
+        assertThat(marker.setLastModified(System.currentTimeMillis() - millisSinceLastUse), is(true));
+        return dir;
+    }
+}
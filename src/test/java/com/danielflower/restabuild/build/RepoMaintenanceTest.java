@@ -0,0 +1,56 @@
+package com.danielflower.restabuild.build;
+
+import com.danielflower.restabuild.FileSandbox;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.json.JSONObject;
+import org.junit.Test;
+import scaffolding.AppRepo;
+import scaffolding.TestConfig;
+
+import java.io.File;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RepoMaintenanceTest {
+
+    private final FileSandbox sandbox = TestConfig.testSandbox();
+
+    @Test
+    public void reposOverTheThresholdsAreRepacked() throws Exception {
+        AppRepo appRepo = AppRepo.create("maven");
+        RemoteGitRepo.create(appRepo.toRepoBranch("master").url, sandbox, new JGitBackend()).fetch(System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE);
+        File repoDir = sandbox.reposDir().listFiles(File::isDirectory)[0];
+
+        JSONObject result = new RepoMaintenance(sandbox, 1, 1).maintain(repoDir);
+        assertThat(result, is(notNullValue()));
+        assertThat(result.getString("gitUrl"), equalTo(appRepo.toRepoBranch("master").url.toString()));
+        assertThat(result.getJSONObject("after").getLong("looseObjects"), is(0L));
+        assertThat(result.getJSONObject("after").getLong("packFiles"), is(1L));
+    }
+
+    @Test
+    public void reposUnderTheThresholdsAreLeftAlone() throws Exception {
+        AppRepo appRepo = AppRepo.create("maven");
+        RemoteGitRepo.create(appRepo.toRepoBranch("master").url, sandbox, new JGitBackend()).fetch(System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE);
+        File repoDir = sandbox.reposDir().listFiles(File::isDirectory)[0];
+
+        assertThat(new RepoMaintenance(sandbox, 50, 6700).maintain(repoDir), is(nullValue()));
+    }
+
+    @Test
+    public void reposInUseAreSkipped() throws Exception {
+        AppRepo appRepo = AppRepo.create("maven");
+        RemoteGitRepo.create(appRepo.toRepoBranch("master").url, sandbox, new JGitBackend()).fetch(System.currentTimeMillis(), 30000, NullProgressMonitor.INSTANCE);
+        File repoDir = sandbox.reposDir().listFiles(File::isDirectory)[0];
+
+        RepoMaintenance maintenance = new RepoMaintenance(sandbox, 1, 1);
+        Thread user = new Thread(() -> {
+            RemoteGitRepo.lockFor(repoDir).lock();
+        });
+        user.start();
+        user.join();
+        assertThat(maintenance.maintain(repoDir), is(nullValue()));
+        assertThat(maintenance.toJson().getLong("skippedAsBusy"), is(1L));
+    }
+}
@@ -0,0 +1,26 @@
+package com.danielflower.restabuild.build;
+
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+import scaffolding.TestConfig;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class RepoWarmerTest {
+
+    @Test
+    public void theMostFrequentlyBuiltReposAreTheHottest() throws Exception {
+        RepoWarmer warmer = new RepoWarmer(TestConfig.testSandbox(), null, 2, 60000, 0, 60000, new JGitBackend());
+        URIish one = new URIish("https://example.org/one.git");
+        URIish two = new URIish("https://example.org/two.git");
+        URIish three = new URIish("https://example.org/three.git");
+        warmer.onBuildQueued(one);
+        warmer.onBuildQueued(two);
+        warmer.onBuildQueued(two);
+        warmer.onBuildQueued(three);
+        warmer.onBuildQueued(three);
+        warmer.onBuildQueued(three);
+        assertThat(warmer.hottest(), contains(three, two));
+    }
+}
@@ -0,0 +1,47 @@
+package com.danielflower.restabuild.build;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import scaffolding.Photocopier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ResourceSamplerTest {
+
+    @Test
+    public void theUsageOfAProcessIncludesAllItsDescendants() throws Exception {
+        File proc = Photocopier.folderForSampleProject("proc");
+        writeProcess(proc, 100, 1, "bash", 50, 10, 0, 0, 1, 2048, 4096, 0);
+        writeProcess(proc, 101, 100, "java (worker)", 300, 100, 40, 10, 30, 500000, 1000, 8192);
+        writeProcess(proc, 102, 101, "sleep", 0, 0, 0, 0, 1, 512, 0, 0);
+        writeProcess(proc, 200, 1, "unrelated", 1000, 1000, 0, 0, 5, 999999, 999, 999);
+        FileUtils.write(new File(proc, "self"), "not a process", StandardCharsets.US_ASCII);
+
+        Map<Long, ResourceSampler.ProcessStat> stats = ResourceSampler.readStats(proc);
+        assertThat(stats.keySet(), containsInAnyOrder(100L, 101L, 102L, 200L));
+
+        ResourceSampler.Usage usage = ResourceSampler.usage(100, stats, ResourceSampler.childrenByParent(stats), proc);
+        assertThat(usage.cpuMillis, is(5100L));
+        assertThat(usage.threads, is(32));
+        assertThat(usage.rssBytes, is((2048 + 500000 + 512) * 1024L));
+        assertThat(usage.readBytes, is(5096L));
+        assertThat(usage.writeBytes, is(8192L));
+
+        assertThat("the process has exited", ResourceSampler.usage(300, stats, ResourceSampler.childrenByParent(stats), proc), is(nullValue()));
+    }
+
+    private static void writeProcess(File proc, long pid, long ppid, String name, long utime, long stime, long cutime, long cstime,
+                                     int threads, long rssKB, long readBytes, long writeBytes) throws IOException {
+        File dir = new File(proc, String.valueOf(pid));
+        FileUtils.write(new File(dir, "stat"), pid + " (" + name + ") S " + ppid + " " + pid + " " + pid + " 0 -1 4194560 100 0 0 0 "
+            + utime + " " + stime + " " + cutime + " " + cstime + " 20 0 " + threads + " 0 1234 10000000 500 18446744073709551615\n", StandardCharsets.US_ASCII);
+        FileUtils.write(new File(dir, "status"), "Name:\t" + name + "\nVmRSS:\t  " + rssKB + " kB\nThreads:\t" + threads + "\n", StandardCharsets.US_ASCII);
+        FileUtils.write(new File(dir, "io"), "rchar: 1\nwchar: 2\nread_bytes: " + readBytes + "\nwrite_bytes: " + writeBytes + "\n", StandardCharsets.US_ASCII);
+    }
+}
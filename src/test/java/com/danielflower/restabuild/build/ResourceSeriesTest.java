@@ -0,0 +1,49 @@
+package com.danielflower.restabuild.build;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ResourceSeriesTest {
+
+    @Test
+    public void peaksAndAveragesCoverSamplesThatHaveBeenOverwritten() {
+        ResourceSeries series = new ResourceSeries(1000, 3);
+        series.add(1000, 0, 100, 0, 0, 1);
+        series.add(2000, 2000, 900, 10, 5, 8);
+        series.add(3000, 2500, 200, 20, 5, 2);
+        series.add(4000, 3000, 200, 30, 6, 2);
+        assertThat(series.size(), is(3));
+
+        JSONObject summary = series.summaryJson();
+        assertThat(summary.getLong("samples"), is(4L));
+        assertThat(summary.getDouble("peakCpuCores"), is(2.0));
+        assertThat(summary.getDouble("averageCpuCores"), is(1.0));
+        assertThat(summary.getLong("peakRssBytes"), is(900L));
+        assertThat(summary.getLong("averageRssBytes"), is(350L));
+        assertThat(summary.getInt("peakThreads"), is(8));
+        assertThat(summary.getLong("readBytes"), is(30L));
+        assertThat(summary.getLong("writeBytes"), is(6L));
+
+        JSONObject samples = series.toJson(10).getJSONObject("samples");
+        assertThat(samples.getJSONArray("time").toList(), contains(2000L, 3000L, 4000L));
+        assertThat(samples.getJSONArray("rssBytes").toList(), contains(900L, 200L, 200L));
+    }
+
+    @Test
+    public void combinedSamplesKeepTheirPeaks() {
+        ResourceSeries series = new ResourceSeries(1000, 10);
+        for (int i = 1; i <= 5; i++) {
+            series.add(i * 1000, i * 100, i == 2 ? 5000 : 100, i, i, i);
+        }
+        JSONObject json = series.toJson(2);
+        assertThat(json.getLong("intervalMillis"), is(3000L));
+        JSONObject samples = json.getJSONObject("samples");
+        assertThat(samples.getJSONArray("time").toList(), contains(3000L, 5000L));
+        assertThat(samples.getJSONArray("cpuMillis").toList(), contains(300L, 500L));
+        assertThat(samples.getJSONArray("rssBytes").toList(), contains(5000L, 100L));
+        assertThat(samples.getJSONArray("threads").toList(), contains(3, 5));
+    }
+}
@@ -0,0 +1,52 @@
+package com.danielflower.restabuild.web;
+
+import org.junit.Test;
+
+import javax.ws.rs.ClientErrorException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThrows;
+
+public class IdempotencyKeysTest {
+
+    @Test
+    public void keysAreForgottenWhenTheyExpireOrThereAreTooMany() throws Exception {
+        IdempotencyKeys keys = new IdempotencyKeys(1000, 2);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        assertThat(keys.claim("a", "params", first, 0), is(nullValue()));
+        first.complete("build-a");
+        assertThat(keys.claim("a", "params", new CompletableFuture<>(), 500).get(), equalTo("build-a"));
+
+        assertThat(keys.claim("b", "params", new CompletableFuture<>(), 600), is(nullValue()));
+        assertThat("a has expired", keys.claim("a", "params", new CompletableFuture<>(), 1001), is(nullValue()));
+        assertThat(keys.claim("c", "params", new CompletableFuture<>(), 1002), is(nullValue()));
+        assertThat("b was the oldest", keys.claim("b", "params", new CompletableFuture<>(), 1003), is(nullValue()));
+        assertThat(keys.toJson().getInt("keys"), is(2));
+        assertThat(keys.toJson().getLong("replays"), is(1L));
+    }
+
+    @Test
+    public void aFailedSubmissionReleasesItsKey() throws Exception {
+        IdempotencyKeys keys = new IdempotencyKeys(1000, 10);
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        keys.claim("a", "params", failed, 0);
+        CompletableFuture<String> waiting = keys.claim("a", "params", new CompletableFuture<>(), 1);
+        keys.release("a", failed);
+        assertThat(waiting.get(), is(nullValue()));
+        assertThat(keys.claim("a", "params", new CompletableFuture<>(), 2), is(nullValue()));
+    }
+
+    @Test
+    public void aKeyCannotBeReusedWithDifferentParameters() throws Exception {
+        IdempotencyKeys keys = new IdempotencyKeys(1000, 10);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        keys.claim("a", "params", first, 0);
+        first.complete("build-a");
+        ClientErrorException rejected = assertThrows(ClientErrorException.class, () -> keys.claim("a", "other params", new CompletableFuture<>(), 1));
+        assertThat(rejected.getResponse().getStatus(), is(422));
+        assertThat(keys.claim("a", "params", new CompletableFuture<>(), 2).get(), equalTo("build-a"));
+        assertThat(keys.toJson().getLong("replays"), is(1L));
+    }
+}